@@ -0,0 +1,192 @@
+package gal.usc.etse.grei.es.project.configuration;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.CascadeJob;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.FriendshipChange;
+import gal.usc.etse.grei.es.project.model.Propagation;
+import gal.usc.etse.grei.es.project.model.RevokedToken;
+import gal.usc.etse.grei.es.project.model.TrendingFilm;
+import gal.usc.etse.grei.es.project.model.User;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+
+import java.util.*;
+
+@Configuration
+// Declaramos os índices que necesitan as consultas dos servizos, e comprobamos ao arrancar que existen
+public class IndexConfiguration implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(IndexConfiguration.class);
+
+    private final MongoTemplate mongo;
+    private final boolean create;
+    private final boolean strict;
+
+    @Autowired
+    public IndexConfiguration(MongoTemplate mongo,
+                              @Value("${indexes.create:true}") boolean create,
+                              @Value("${indexes.strict:false}") boolean strict) {
+        this.mongo = mongo;
+        this.create = create;
+        this.strict = strict;
+    }
+
+    // Índices requiridos por cada colección
+    public static Map<Class<?>, List<Index>> indexes() {
+        Map<Class<?>, List<Index>> indexes = new LinkedHashMap<>();
+
+        // FilmService.get: filtros $all sobre arrays (índices multikey) e filtros e ordenación por data de estrea
+        indexes.put(Film.class, Arrays.asList(
+                new Index().on("title", Sort.Direction.ASC).named("title"),
+                new Index().on("genres", Sort.Direction.ASC).named("genres"),
+                new Index().on("keywords", Sort.Direction.ASC).named("keywords"),
+                new Index().on("producers.name", Sort.Direction.ASC).named("producers_name"),
+                new Index().on("crew.name", Sort.Direction.ASC).named("crew_name"),
+                new Index().on("cast.name", Sort.Direction.ASC).named("cast_name"),
+                new Index().on("releaseDate.year", Sort.Direction.ASC).on("releaseDate.month", Sort.Direction.ASC)
+                        .on("releaseDate.day", Sort.Direction.ASC).named("releaseDate"),
+                new Index().on("genres", Sort.Direction.ASC).on("releaseDate.year", Sort.Direction.DESC)
+                        .on("releaseDate.month", Sort.Direction.DESC).on("releaseDate.day", Sort.Direction.DESC)
+                        .named("genres_releaseDate"),
+                // FilmController.get: ordenación por valoración media
+                new Index().on("rating.average", Sort.Direction.DESC).named("rating"),
+                // FilmTermIndex: lectura periódica das películas modificadas
+                new Index().on("modified", Sort.Direction.ASC).named("modified")
+        ));
+
+        // UserService.get: filtro e ordenación por nome, e ordenación por data de nacemento. O email é o _id, e
+        // PersonService só le as persoas completas, polo que abonda co índice de _id
+        indexes.put(User.class, Arrays.asList(
+                new Index().on("name", Sort.Direction.ASC).named("name"),
+                new Index().on("birthday.year", Sort.Direction.ASC).on("birthday.month", Sort.Direction.ASC)
+                        .on("birthday.day", Sort.Direction.ASC).named("birthday")
+        ));
+
+        // AssessmentService: valoracións dunha película, dun usuario sobre unha película, e as dun usuario
+        // ordenadas da máis recente á máis antiga, para paxinar por cursor sen ordenar en memoria
+        indexes.put(Assessment.class, Arrays.asList(
+                new Index().on("film._id", Sort.Direction.ASC).on("user._id", Sort.Direction.ASC).named("film_user"),
+                new Index().on("user._id", Sort.Direction.ASC).on("_id", Sort.Direction.DESC).named("user_id")
+        ));
+
+        // FriendshipService: unha soa amizade por parella de usuarios (as anteriores á clave non a teñen ata
+        // completala ao arrancar), amizades nas que o usuario aparece como user ou como friend paxinadas por _id,
+        // e solicitudes pendentes recibidas
+        indexes.put(Friendship.class, Arrays.asList(
+                new Index().on("pairKey", Sort.Direction.ASC).unique().sparse().named("pair"),
+                new Index().on("user", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("user_id"),
+                new Index().on("friend", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("friend_id"),
+                new Index().on("friend", Sort.Direction.ASC).on("confirmed", Sort.Direction.ASC)
+                        .on("_id", Sort.Direction.ASC).named("inbox")
+        ));
+
+        // FriendshipGraph: os cambios elimínanse sós cando remata o tempo no que se gardan (índice TTL), e cada
+        // instancia le periodicamente os máis recentes, na orde na que se fixeron
+        indexes.put(FriendshipChange.class, Arrays.asList(
+                new Index().on("expires", Sort.Direction.ASC).expire(0).named("expires"),
+                new Index().on("created", Sort.Direction.ASC).on("_id", Sort.Direction.ASC).named("created")
+        ));
+
+        // CascadeService.resume: traballos pendentes, e en execución cunha reserva caducada, na orde na que se
+        // crearon
+        indexes.put(CascadeJob.class, Arrays.asList(
+                new Index().on("status", Sort.Direction.ASC).on("created", Sort.Direction.ASC).named("status_created"),
+                new Index().on("status", Sort.Direction.ASC).on("lease", Sort.Direction.ASC).named("status_lease")
+        ));
+
+        // PropagationService: cambios pendentes de propagar, na orde na que se fixeron
+        indexes.put(Propagation.class, Collections.singletonList(
+                new Index().on("created", Sort.Direction.ASC).named("created")
+        ));
+
+        // TrendingService: as instancias que non calculan o ranking len só as primeiras películas
+        indexes.put(TrendingFilm.class, Collections.singletonList(
+                new Index().on("rank", Sort.Direction.DESC).named("rank")
+        ));
+
+        // RevocationService: as revogacións elimínanse soas cando caducan os tokens afectados (índice TTL), e
+        // cada instancia le periodicamente as máis recentes
+        indexes.put(RevokedToken.class, Arrays.asList(
+                new Index().on("expires", Sort.Direction.ASC).expire(0).named("expires"),
+                new Index().on("created", Sort.Direction.ASC).named("created")
+        ));
+
+        return indexes;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        List<String> missing = new ArrayList<>();
+
+        for (Map.Entry<Class<?>, List<Index>> entry : indexes().entrySet()) {
+            String collection = mongo.getCollectionName(entry.getKey());
+            IndexOperations operations = mongo.indexOps(entry.getKey());
+
+            // Creamos os índices en segundo plano, para non bloquear a colección mentres se constrúen
+            if (create) {
+                for (Index index : entry.getValue()) {
+                    try {
+                        operations.ensureIndex(index.background());
+                    } catch (DataAccessException e) {
+                        log.warn("Could not create index {} on {}: {}", name(index), collection, e.getMessage());
+                    }
+                }
+            }
+
+            // Comparamos os índices declarados cos que existen realmente na base de datos
+            List<IndexInfo> existing = operations.getIndexInfo();
+            Set<String> declared = new HashSet<>();
+            for (Index index : entry.getValue()) {
+                declared.add(index.getIndexKeys().toJson());
+                if (existing.stream().noneMatch(info -> matches(info, index))) {
+                    missing.add(collection + "." + name(index));
+                }
+            }
+            for (IndexInfo info : existing) {
+                if (!info.getName().equals("_id_") && !declared.contains(keys(info).toJson())) {
+                    log.info("Index {} on {} is not declared by the application", info.getName(), collection);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            log.warn("Missing indexes: {}", missing);
+            // En modo estrito non permitimos arrancar sen os índices que necesitan as consultas
+            if (strict) {
+                throw new IllegalStateException("Missing required indexes: " + missing);
+            }
+        }
+    }
+
+    // O orde dos campos forma parte do índice, polo que comparamos a súa representación JSON
+    private static boolean matches(IndexInfo info, Index index) {
+        return keys(info).toJson().equals(index.getIndexKeys().toJson())
+                && info.isUnique() == index.getIndexOptions().getBoolean("unique", false);
+    }
+
+    private static Document keys(IndexInfo info) {
+        Document keys = new Document();
+        for (IndexField field : info.getIndexFields()) {
+            keys.append(field.getKey(), field.getDirection() == Sort.Direction.DESC ? -1 : 1);
+        }
+        return keys;
+    }
+
+    private static String name(Index index) {
+        return index.getIndexOptions().getString("name");
+    }
+}
@@ -3,9 +3,11 @@ package gal.usc.etse.grei.es.project.configuration;
 import gal.usc.etse.grei.es.project.filter.AuthenticationFilter;
 import gal.usc.etse.grei.es.project.filter.AuthorizationFilter;
 import gal.usc.etse.grei.es.project.service.AuthenticationService;
-import io.jsonwebtoken.SignatureAlgorithm;
-import io.jsonwebtoken.security.Keys;
+import gal.usc.etse.grei.es.project.service.KeyRing;
+import gal.usc.etse.grei.es.project.service.PasswordHasher;
+import gal.usc.etse.grei.es.project.service.RevocationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.access.hierarchicalroles.RoleHierarchy;
@@ -18,11 +20,9 @@ import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.access.expression.DefaultWebSecurityExpressionHandler;
 
-import java.security.Key;
+import java.time.Duration;
 import java.util.*;
 
 @Configuration
@@ -32,18 +32,30 @@ import java.util.*;
 @EnableGlobalMethodSecurity(prePostEnabled = true)
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
     private final AuthenticationService auth;
-    private static final Key key = Keys.secretKeyFor(SignatureAlgorithm.HS512);
+    // Claves de firmado compartidas por todas as instancias, gardadas na base de datos
+    private final KeyRing keys;
+    // BCrypt nun grupo de fíos propio e limitado, compartido polo login e o rexistro
+    private final PasswordHasher hasher;
+    // Tokens revogados antes de caducar
+    private final RevocationService revocations;
+    // Duración dos tokens
+    private final Duration duration;
 
     @Autowired
-    public SecurityConfiguration(AuthenticationService auth) {
+    public SecurityConfiguration(AuthenticationService auth, KeyRing keys, PasswordHasher hasher,
+                                 RevocationService revocations, @Value("${jwt.duration:60m}") Duration duration) {
         this.auth = auth;
+        this.keys = keys;
+        this.hasher = hasher;
+        this.revocations = revocations;
+        this.duration = duration;
     }
 
     @Override
     protected void configure(AuthenticationManagerBuilder auth) throws Exception {
         // Establecemos o servizo que se empregará para obter os detalles do usuario
         // e cal é o PasswordEncoder que empregaremos
-        auth.userDetailsService(this.auth).passwordEncoder(passwordEncoder());
+        auth.userDetailsService(this.auth).passwordEncoder(hasher);
     }
 
     @Override
@@ -58,23 +70,20 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
     protected void configure(HttpSecurity http) throws Exception {
         // Deshabilitamos a protección contra ataques CSRF
         http.cors().and().csrf().disable()
+                // As métricas da aplicación só as poden consultar os administradores
+                .authorizeRequests().antMatchers("/actuator/**").hasRole("ADMIN")
                 // Indicamos que por defecto permitimos o acceso de calquera a todos os servizos
-                .authorizeRequests().anyRequest().permitAll()
+                .anyRequest().permitAll()
                 .and()
                 // Engadimos os nosos filtros á cadea de filtros das chamadas
-                .addFilter(new AuthenticationFilter(authenticationManager(), tokenSignKey()))
-                .addFilter(new AuthorizationFilter(authenticationManager(), tokenSignKey()))
+                .addFilter(new AuthenticationFilter(authenticationManager(), keys, duration))
+                .addFilter(new AuthorizationFilter(authenticationManager(), keys, revocations))
+                // O logout por defecto de Spring redirixe; o noso revoga o token en AuthController
+                .logout().disable()
                 // Especificamos que queremos sesións sen estado (REST é, por definición, sen estado)
                 .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS);
     }
 
-    @Bean
-    public PasswordEncoder passwordEncoder() {
-        // Creamos unha instancia do algoritmo BCrypt para empregar como encoder
-        // de contrasinais
-        return new BCryptPasswordEncoder();
-    }
-
     @Bean
     public RoleHierarchy roleHierarchy() {
         Map<String, List<String>> roles = new HashMap<>();
@@ -88,10 +97,4 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
 
         return hierarchy;
     }
-
-    @Bean
-    public Key tokenSignKey() {
-        // Xeramos unha clave de firmado aleatoria para o algoritmo SHA512
-        return SecurityConfiguration.key;
-    }
 }
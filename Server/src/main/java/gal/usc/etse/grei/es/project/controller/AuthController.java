@@ -1,5 +1,7 @@
 package gal.usc.etse.grei.es.project.controller;
 
+import gal.usc.etse.grei.es.project.service.RevocationService;
+import io.jsonwebtoken.Claims;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -7,7 +9,11 @@ import io.swagger.v3.oas.annotations.media.ExampleObject;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -16,10 +22,19 @@ import org.springframework.web.bind.annotation.RestController;
 import java.util.Map;
 
 @RestController
-@RequestMapping("/login")
+@RequestMapping
 @Tag(name = "Authentication API", description = "Authentication operations")
 public class AuthController {
+    private final RevocationService revocations;
+
+    //Instancias
+    @Autowired
+    public AuthController(RevocationService revocations) {
+        this.revocations = revocations;
+    }
+
     @PostMapping(
+            path = "/login",
             produces = MediaType.APPLICATION_JSON_VALUE
     )
     @Operation(
@@ -52,4 +67,44 @@ public class AuthController {
             @RequestBody Map<String, String> userpass
     ) {
     }
+
+    //método POST para cerrar la sesión: el token usado deja de aceptarse aunque no haya caducado
+    @PostMapping(
+            path = "/logout"
+    )
+    @Operation(
+            operationId = "logout",
+            summary = "Logout",
+            description = "Revoke the JWT token used in the request, so it is no longer accepted."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "204",
+                    description = "The token has been revoked",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "401",
+                    description = "Token already revoked",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            )
+    })
+    @PreAuthorize("isAuthenticated()")
+    ResponseEntity<Void> logout(
+            @Parameter(hidden = true) Authentication authentication
+    ) {
+        //los claims del token los guarda el filtro de autorización
+        if (authentication.getDetails() instanceof Claims) {
+            Claims claims = (Claims) authentication.getDetails();
+            //los tokens emitidos antes de identificarlos no se pueden revocar uno a uno, y caducan solos
+            revocations.revoke(claims.getId(), claims.getExpiration());
+        }
+        //devolvemos la respuesta de que todo fue bien, sin cuerpo
+        return ResponseEntity.noContent().build();
+    }
 }
@@ -0,0 +1,102 @@
+package gal.usc.etse.grei.es.project.controller;
+
+import gal.usc.etse.grei.es.project.model.CascadeJob;
+import gal.usc.etse.grei.es.project.service.CascadeService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.hateoas.Link;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Optional;
+
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
+import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
+
+//link al servicio que se encuentra en /cascades
+@RestController
+@RequestMapping("cascades")
+@SecurityRequirement(name = "JWT")
+public class CascadeController {
+    private final CascadeService cascades;
+
+    //Instancias
+    @Autowired
+    public CascadeController(CascadeService cascades) {
+        this.cascades = cascades;
+    }
+
+    //método GET al recuperar el estado de un borrado en segundo plano
+    //link al servicio en cascades/{id}, produces lo que devuelve
+    @GetMapping(
+            path = "{id}",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @Operation(
+            operationId = "getOneCascade",
+            summary = "Gets the status of a deletion",
+            description = "Get the progress of the background deletion of the assessments and friendships that " +
+                    "depend on a deleted user or film. To see the status you must have admin permissions: the users " +
+                    "who delete themselves lose access together with their sessions."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "The deletion status",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = CascadeJob.class)
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "Deletion not found",
+                    content = @Content
+            )
+    })
+    //solo pueden los administradores: los usuarios que se eliminan pierden sus tokens al hacerlo, y las
+    //películas solo las eliminan los administradores
+    @PreAuthorize("hasRole('ADMIN')")
+    ResponseEntity<CascadeJob> get(
+            @Parameter(name = "id", required = true)
+            @PathVariable("id") String id
+    ) {
+        //recuperamos el trabajo indicado
+        Optional<CascadeJob> result = cascades.get(id);
+
+        //si no se encuentra el trabajo
+        if (!result.isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Deletion not found");
+        }
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(CascadeController.class).get(id)
+        ).withSelfRel();
+
+        //devolvemos la respuesta de que todo fue bien, con el enlace en la cabecera, y el cuerpo correspondiente
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .body(result.get());
+    }
+}
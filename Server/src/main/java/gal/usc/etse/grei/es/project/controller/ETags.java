@@ -0,0 +1,38 @@
+package gal.usc.etse.grei.es.project.controller;
+
+import gal.usc.etse.grei.es.project.model.Versioned;
+import gal.usc.etse.grei.es.project.service.PatchMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+//conversión entre la versión de un documento y las cabeceras ETag e If-Match
+final class ETags {
+    private ETags() {
+    }
+
+    //ETag correspondiente a la versión del documento
+    static String of(Versioned document) {
+        return "\"" + PatchMethod.version(document.getVersion()) + "\"";
+    }
+
+    //versión que exige la cabecera If-Match, o null si no se indica o vale cualquiera
+    static Long version(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        String tag = ifMatch.trim();
+        //las ETags débiles valen igual, pues la versión identifica el documento completo
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        try {
+            if (tag.length() < 2 || !tag.startsWith("\"") || !tag.endsWith("\"")) {
+                throw new NumberFormatException(tag);
+            }
+            return Long.parseLong(tag.substring(1, tag.length() - 1));
+        } catch (NumberFormatException e) {
+            //una ETag que no hemos generado nosotros nunca coincide con la actual
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Resource has been modified");
+        }
+    }
+}
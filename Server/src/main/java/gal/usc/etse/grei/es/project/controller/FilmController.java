@@ -3,7 +3,11 @@ package gal.usc.etse.grei.es.project.controller;
 import gal.usc.etse.grei.es.project.model.*;
 import gal.usc.etse.grei.es.project.model.Date;
 import gal.usc.etse.grei.es.project.service.AssessmentService;
+import gal.usc.etse.grei.es.project.service.CascadeService;
+import gal.usc.etse.grei.es.project.service.CountedPage;
+import gal.usc.etse.grei.es.project.service.CursorSlice;
 import gal.usc.etse.grei.es.project.service.FilmService;
+import gal.usc.etse.grei.es.project.service.TrendingService;
 import gal.usc.etse.grei.es.project.service.UserService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -13,8 +17,10 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.hateoas.Link;
@@ -28,6 +34,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
 import javax.validation.Valid;
+import java.security.Principal;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -40,16 +47,21 @@ import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
 @SecurityRequirement(name = "JWT")
 public class FilmController {
     private final AssessmentService assessments;
+    private final CascadeService cascades;
     private final FilmService films;
     private final UserService users;
+    private final TrendingService trending;
     private final LinkRelationProvider relationProvider;
 
     //Instancias
     @Autowired
-    public FilmController(AssessmentService assessments, FilmService films, UserService users, LinkRelationProvider relationProvider) {
+    public FilmController(AssessmentService assessments, CascadeService cascades, FilmService films, UserService users,
+                          TrendingService trending, LinkRelationProvider relationProvider) {
         this.assessments = assessments;
+        this.cascades = cascades;
         this.films = films;
         this.users = users;
+        this.trending = trending;
         this.relationProvider = relationProvider;
     }
 
@@ -108,11 +120,12 @@ public class FilmController {
         sort.add("");
         Link all = linkTo(
                 methodOn(FilmController.class).get(0, 0, sort, null, null, null, null,
-                        null, null, null, null)
+                        null, null, null, null, null)
         ).withRel(relationProvider.getItemResourceRelFor(Film.class));
 
-        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        //devolvemos la respuesta de que todo fue bien, con la versión y los enlaces en la cabecera, y el cuerpo correspondiente
         return ResponseEntity.ok()
+                .eTag(ETags.of(result.get()))
                 .header(HttpHeaders.LINK, self.toString())
                 .header(HttpHeaders.LINK, all.toString())
                 .body(result.get());
@@ -135,7 +148,7 @@ public class FilmController {
                     description = "The films registered",
                     content = @Content(
                             mediaType = "application/json",
-                            schema = @Schema(implementation = Film.class)
+                            schema = @Schema(implementation = FilmSummary.class)
                     )
             ),
             @ApiResponse(
@@ -152,7 +165,7 @@ public class FilmController {
     //recogemos todas las películas paginando con los requestparam
     //si está logueado
     @PreAuthorize("isAuthenticated()")
-    ResponseEntity<Page<Film>> get(
+    ResponseEntity<Slice<FilmSummary>> get(
             //parámetros a continuación de la interrogación para el filtrado
             @Parameter(name = "Page of the search")
             @RequestParam(name = "page", defaultValue = "0") int page,
@@ -175,7 +188,9 @@ public class FilmController {
             @Parameter(name = "Month of publish of the search")
             @RequestParam(name = "month", required = false) Integer month,
             @Parameter(name = "Year of publish of the search")
-            @RequestParam(name = "year", required = false) Integer year
+            @RequestParam(name = "year", required = false) Integer year,
+            @Parameter(name = "Cursor of the search, empty to get the first page by cursor")
+            @RequestParam(name = "cursor", required = false) String cursor
     ) {
         //ordenamos por fecha de estreno
         if (sort.contains("+releaseDate")) {
@@ -190,6 +205,8 @@ public class FilmController {
             sort.add("-releaseDate.day");
             sort.remove("-releaseDate");
         }
+        //ordenamos por la valoración media, que se guarda en cada película
+        sort.replaceAll(string -> string.equals("+rating") || string.equals("-rating") ? string + ".average" : string);
 
         //ordenamos la lista obtenida
         List<Sort.Order> criteria = sort.stream().map(string -> {
@@ -205,7 +222,12 @@ public class FilmController {
                 .collect(Collectors.toList());
 
         Date releaseDate = new Date(day, month, year);
-        Optional<Page<Film>> result = films.get(page, size, Sort.by(criteria),
+        //si se pide la búsqueda por cursor
+        if (cursor != null) {
+            return getByCursor(size, sort, Sort.by(criteria), keywords, genres, producers, crew, cast, day, month, year,
+                    releaseDate, cursor);
+        }
+        Optional<Page<FilmSummary>> result = films.get(page, size, Sort.by(criteria),
                 keywords, genres, producers, crew, cast, releaseDate);
 
         //si no hay ninguna película guardada
@@ -214,30 +236,30 @@ public class FilmController {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Films not found");
         }
         //guardamos los resultados obtenidos
-        Page<Film> data = result.get();
+        Page<FilmSummary> data = result.get();
         //paginamos los datos obtenidos
         Pageable metadata = data.getPageable();
 
         //creamos los enlaces correspondientes
         Link self = linkTo(
                 methodOn(FilmController.class).get(page, size, sort, keywords, genres, producers,
-                        crew, cast, day, month, year)
+                        crew, cast, day, month, year, null)
         ).withSelfRel();
         Link first = linkTo(
                 methodOn(FilmController.class).get(metadata.first().getPageNumber(), size, sort, keywords,
-                        genres, producers, crew, cast, day, month, year)
+                        genres, producers, crew, cast, day, month, year, null)
         ).withRel(IanaLinkRelations.FIRST);
         Link next = linkTo(
                 methodOn(FilmController.class).get(metadata.next().getPageNumber(), size, sort, keywords,
-                        genres, producers, crew, cast, day, month, year)
+                        genres, producers, crew, cast, day, month, year, null)
         ).withRel(IanaLinkRelations.NEXT);
         Link previous = linkTo(
                 methodOn(FilmController.class).get(metadata.previousOrFirst().getPageNumber(), size, sort, keywords,
-                        genres, producers, crew, cast, day, month, year)
+                        genres, producers, crew, cast, day, month, year, null)
         ).withRel(IanaLinkRelations.PREVIOUS);
         Link last = linkTo(
                 methodOn(FilmController.class).get(data.getTotalPages() - 1, size, sort, keywords,
-                        genres, producers, crew, cast, day, month, year)
+                        genres, producers, crew, cast, day, month, year, null)
         ).withRel(IanaLinkRelations.LAST);
         Link one = linkTo(
                 methodOn(FilmController.class).get(null)
@@ -251,9 +273,113 @@ public class FilmController {
                 .header(HttpHeaders.LINK, previous.toString())
                 .header(HttpHeaders.LINK, last.toString())
                 .header(HttpHeaders.LINK, one.toString())
+                .header("X-Total-Count-Type", CountedPage.type(data))
                 .body(result.get());
     }
 
+    //recupera las películas paginando por cursor, de forma que el enlace next lleva el cursor de la siguiente página
+    private ResponseEntity<Slice<FilmSummary>> getByCursor(int size, List<String> sort, Sort order, List<String> keywords,
+                                                           List<String> genres, List<String> producers, List<String> crew,
+                                                           List<String> cast, Integer day, Integer month, Integer year,
+                                                           Date releaseDate, String cursor) {
+        Optional<CursorSlice<FilmSummary>> result;
+        try {
+            result = films.get(cursor, size, order, keywords, genres, producers, crew, cast, releaseDate);
+        } catch (IllegalArgumentException e) {
+            //devolvemos código de error 400 si el cursor no es válido para la búsqueda
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+
+        //si no hay ninguna película guardada
+        if (!result.isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Films not found");
+        }
+        //guardamos los resultados obtenidos
+        CursorSlice<FilmSummary> data = result.get();
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(FilmController.class).get(0, size, sort, keywords, genres, producers,
+                        crew, cast, day, month, year, cursor)
+        ).withSelfRel();
+        Link first = linkTo(
+                methodOn(FilmController.class).get(0, size, sort, keywords, genres, producers,
+                        crew, cast, day, month, year, "")
+        ).withRel(IanaLinkRelations.FIRST);
+        Link one = linkTo(
+                methodOn(FilmController.class).get(null)
+        ).withRel(relationProvider.getItemResourceRelFor(Film.class));
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, first.toString());
+        //solo hay enlace a la siguiente página si quedan películas
+        if (data.getNextCursor() != null) {
+            Link next = linkTo(
+                    methodOn(FilmController.class).get(0, size, sort, keywords, genres, producers,
+                            crew, cast, day, month, year, data.getNextCursor())
+            ).withRel(IanaLinkRelations.NEXT);
+            response.header(HttpHeaders.LINK, next.toString());
+        }
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return response
+                .header(HttpHeaders.LINK, one.toString())
+                .body(data);
+    }
+
+    //método GET al recuperar las películas en tendencia
+    //link al servicio en films/trending, produces lo que devuelve
+    @GetMapping(
+            path = "trending",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @Operation(
+            operationId = "getTrendingFilms",
+            summary = "Gets the trending films",
+            description = "Get the films with more recent assessments, ordered by a score that decays with time. " +
+                    "To see the trending films you must be logged in."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "The trending films",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = TrendingFilm.class)
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            )
+    })
+    //si está logueado
+    @PreAuthorize("isAuthenticated()")
+    ResponseEntity<List<TrendingFilm>> getTrending(
+            @Parameter(name = "Number of films to get")
+            @RequestParam(name = "size", defaultValue = "10") int size
+    ) {
+        //las películas en tendencia se sirven desde memoria
+        List<TrendingFilm> result = trending.get(Math.max(size, 0));
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(FilmController.class).getTrending(size)
+        ).withSelfRel();
+        Link one = linkTo(
+                methodOn(FilmController.class).get(null)
+        ).withRel(relationProvider.getItemResourceRelFor(Film.class));
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, one.toString())
+                .body(result);
+    }
+
     //método GET al recuperar una valoración
     //link al servicio en films/assessments/{id}, produces lo que devuelve
     @GetMapping(
@@ -397,6 +523,7 @@ public class FilmController {
                 .header(HttpHeaders.LINK, next.toString())
                 .header(HttpHeaders.LINK, previous.toString())
                 .header(HttpHeaders.LINK, last.toString())
+                .header("X-Total-Count-Type", CountedPage.type(data))
                 .body(result.get());
     }
 
@@ -444,7 +571,7 @@ public class FilmController {
         sort.add("");
         Link all = linkTo(
                 methodOn(FilmController.class).get(0, 0, sort, null, null, null, null,
-                        null, null, null, null)
+                        null, null, null, null, null)
         ).withRel(relationProvider.getItemResourceRelFor(Film.class));
 
         //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
@@ -578,6 +705,16 @@ public class FilmController {
                     description = "Film not found",
                     content = @Content
             ),
+            @ApiResponse(
+                    responseCode = "409",
+                    description = "The film is being modified concurrently",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "412",
+                    description = "The film has been modified since the version in If-Match",
+                    content = @Content
+            ),
             @ApiResponse(
                     responseCode = "422",
                     description = "Can not remove the title OR id field OR operation can not be applied to the object",
@@ -591,7 +728,9 @@ public class FilmController {
             @Parameter(name = "id", required = true)
             @PathVariable("id") String id,
             @Parameter(name = "Updates to be applied to the film", required = true)
-            @RequestBody List<Map<String, Object>> updates
+            @RequestBody List<Map<String, Object>> updates,
+            @Parameter(name = "If-Match", description = "ETag of the version of the film being modified")
+            @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch
     ) {
         //si la película no existe en la base de datos
         if (!films.get(id).isPresent()) {
@@ -606,10 +745,18 @@ public class FilmController {
                 //devolvemos código de error 422 al intentar el eliminar el campo del título o id
                 throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "You can not remove the field");
             }
+            //las valoraciones acumuladas solo se modifican al crear, modificar o eliminar valoraciones
+            if (String.valueOf(update.get("path")).startsWith("/rating") ||
+                    String.valueOf(update.get("from")).startsWith("/rating")) {
+                //devolvemos código de error 422 al intentar modificar las valoraciones
+                throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "You can not modify the field");
+            }
         }
+        //versión de la película que espera modificar el cliente
+        Long version = ETags.version(ifMatch);
         try {
             //modificamos la película en la base de datos
-            Film result = films.patch(id, updates);
+            Film result = films.patch(id, version, updates);
 
             //creamos los enlaces correspondientes
             Link self = linkTo(
@@ -619,14 +766,22 @@ public class FilmController {
             sort.add("");
             Link all = linkTo(
                     methodOn(FilmController.class).get(0, 0, sort, null, null, null, null,
-                            null, null, null, null)
+                            null, null, null, null, null)
             ).withRel(relationProvider.getItemResourceRelFor(Film.class));
 
             //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
             return ResponseEntity.ok()
+                    .eTag(ETags.of(result))
                     .header(HttpHeaders.LINK, self.toString())
                     .header(HttpHeaders.LINK, all.toString())
                     .body(result);
+        } catch (OptimisticLockingFailureException e) {
+            //si se indicó la versión, la película ha cambiado desde que el cliente la leyó
+            if (version != null) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "Film has been modified");
+            }
+            //si no, otras peticiones la han modificado cada vez que se intentó aplicar el patch
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Film is being modified concurrently");
         } catch (Exception e) {
             //devolvemos un error del tipo 422, pues la operación no se puede aplicar al objeto a modificar
             throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Operation can not be applied to the object");
@@ -714,7 +869,7 @@ public class FilmController {
                     methodOn(FilmController.class).getAssessmentsFilm(0, 0, result.getFilm().getId())
             ).withRel(relationProvider.getItemResourceRelFor(Assessment.class));
             Link allFromUser = linkTo(
-                    methodOn(UserController.class).getAssessmentsUser(0, 0, result.getUser().getEmail())
+                    methodOn(UserController.class).getAssessmentsUser(0, 0, result.getUser().getEmail(), null)
             ).withRel(relationProvider.getItemResourceRelFor(Assessment.class));
 
             //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
@@ -723,6 +878,9 @@ public class FilmController {
                     .header(HttpHeaders.LINK, allFromFilm.toString())
                     .header(HttpHeaders.LINK, allFromUser.toString())
                     .body(result);
+        } catch (OptimisticLockingFailureException e) {
+            //otras peticiones han modificado la valoración cada vez que se intentó aplicar el patch
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Assessment is being modified concurrently");
         } catch (Exception e) {
             //devolvemos un error del tipo 422, pues la operación no se puede aplicar al objeto a modificar
             throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Operation can not be applied to the object");
@@ -737,14 +895,17 @@ public class FilmController {
     @Operation(
             operationId = "deleteFilm",
             summary = "Deletes a film",
-            description = "Deletes a film from the database. To delete a film you must have " +
-                    "admin permissions."
+            description = "Deletes a film from the database. Its assessments are deleted in the " +
+                    "background. To delete a film you must have admin permissions."
     )
     @ApiResponses({
             @ApiResponse(
-                    responseCode = "204",
-                    description = "The film was deleted",
-                    content = @Content
+                    responseCode = "202",
+                    description = "The film was deleted, and its assessments are being deleted",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = CascadeJob.class)
+                    )
             ),
             @ApiResponse(
                     responseCode = "403",
@@ -760,9 +921,10 @@ public class FilmController {
     //recoge la variable del id, pues necesita buscar el id para eliminar la película
     //solo se permite a los administradores
     @PreAuthorize("hasRole('ADMIN')")
-    ResponseEntity<Film> delete(
+    ResponseEntity<CascadeJob> delete(
             @Parameter(name = "id", required = true)
-            @PathVariable("id") String id
+            @PathVariable("id") String id,
+            @Parameter(hidden = true) Principal principal
     ) {
         //si la película no existe en la base de datos
         if (!films.get(id).isPresent()) {
@@ -771,25 +933,26 @@ public class FilmController {
         }
         //eliminamos la película
         films.delete(id);
-        //eliminamos los comentarios de dicha película
-        for (Assessment a : assessments.getAll()) {
-            if (a.getFilm().getId().equals(id)) {
-                assessments.delete(a.getId());
-            }
-        }
+        //sus comentarios se eliminan en segundo plano
+        CascadeJob job = cascades.deleteFilm(id, principal.getName());
 
         //creamos los enlaces correspondientes
         List<String> sort = new ArrayList<>();
         sort.add("");
         Link all = linkTo(
                 methodOn(FilmController.class).get(0, 0, sort, null, null, null, null,
-                        null, null, null, null)
+                        null, null, null, null, null)
         ).withRel(relationProvider.getItemResourceRelFor(Film.class));
+        Link status = linkTo(
+                methodOn(CascadeController.class).get(job.getId())
+        ).withRel(relationProvider.getItemResourceRelFor(CascadeJob.class));
 
-        //devolvemos código de error 204 al ir todo bien
-        return ResponseEntity.noContent()
+        //devolvemos código 202, pues el borrado continúa, con el enlace para consultar su estado
+        return ResponseEntity.accepted()
+                .location(status.toUri())
                 .header(HttpHeaders.LINK, all.toString())
-                .build();
+                .header(HttpHeaders.LINK, status.toString())
+                .body(job);
     }
 
     //método DELETE para eliminar una valoración
@@ -842,7 +1005,7 @@ public class FilmController {
                 methodOn(FilmController.class).getAssessmentsFilm(0, 0, film)
         ).withRel(relationProvider.getItemResourceRelFor(Assessment.class));
         Link allUsers = linkTo(
-                methodOn(UserController.class).getAssessmentsUser(0, 0, user)
+                methodOn(UserController.class).getAssessmentsUser(0, 0, user, null)
         ).withRel(relationProvider.getItemResourceRelFor(Assessment.class));
 
         //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
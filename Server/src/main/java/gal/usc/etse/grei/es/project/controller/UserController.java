@@ -1,10 +1,17 @@
 package gal.usc.etse.grei.es.project.controller;
 
 import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.CascadeJob;
 import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.Suggestion;
 import gal.usc.etse.grei.es.project.model.User;
 import gal.usc.etse.grei.es.project.service.AssessmentService;
+import gal.usc.etse.grei.es.project.service.CascadeService;
+import gal.usc.etse.grei.es.project.service.CountedPage;
+import gal.usc.etse.grei.es.project.service.CursorSlice;
+import gal.usc.etse.grei.es.project.service.FeedService;
 import gal.usc.etse.grei.es.project.service.FriendshipService;
+import gal.usc.etse.grei.es.project.service.SaturatedException;
 import gal.usc.etse.grei.es.project.service.UserService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -15,8 +22,10 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.hateoas.Link;
@@ -43,14 +52,19 @@ import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
 @SecurityRequirement(name = "JWT")
 public class UserController {
     private final AssessmentService assessments;
+    private final CascadeService cascades;
+    private final FeedService feed;
     private final FriendshipService friendships;
     private final UserService users;
     private final LinkRelationProvider relationProvider;
 
     //Instancias
     @Autowired
-    public UserController(AssessmentService assessments, FriendshipService friendships, UserService users, LinkRelationProvider relationProvider) {
+    public UserController(AssessmentService assessments, CascadeService cascades, FeedService feed,
+                          FriendshipService friendships, UserService users, LinkRelationProvider relationProvider) {
         this.assessments = assessments;
+        this.cascades = cascades;
+        this.feed = feed;
         this.friendships = friendships;
         this.users = users;
         this.relationProvider = relationProvider;
@@ -113,8 +127,9 @@ public class UserController {
                 methodOn(UserController.class).get(0, 0, sort, null, null)
         ).withRel(relationProvider.getItemResourceRelFor(User.class));
 
-        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        //devolvemos la respuesta de que todo fue bien, con la versión y los enlaces en la cabecera, y el cuerpo correspondiente
         return ResponseEntity.ok()
+                .eTag(ETags.of(result.get()))
                 .header(HttpHeaders.LINK, self.toString())
                 .header(HttpHeaders.LINK, all.toString())
                 .body(result.get());
@@ -272,20 +287,26 @@ public class UserController {
     })
     //solo puede admin, el propio usuario y sus amigos
     @PreAuthorize("hasRole('ADMIN') or #user == principal or @friendshipService.areFriends(principal, #user)")
-    ResponseEntity<Page<Assessment>> getAssessmentsUser(
+    ResponseEntity<Slice<Assessment>> getAssessmentsUser(
             //parámetro a continuación de la interrogación para el filtrado
             @Parameter(name = "Page of the search")
             @RequestParam(name = "page", defaultValue = "0") int page,
             @Parameter(name = "Size of the search")
             @RequestParam(name = "size", defaultValue = "20") int size,
             @Parameter(name = "id", required = true)
-            @PathVariable("id") String user
+            @PathVariable("id") String user,
+            @Parameter(name = "Cursor of the search, empty to get the first page by cursor")
+            @RequestParam(name = "cursor", required = false) String cursor
     ) {
         //si el usuario no existe
         if (!users.get(user).isPresent()) {
             //devolvemos código de error 404 al producirse un error de búsqueda
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
         }
+        //si se pide la búsqueda por cursor
+        if (cursor != null) {
+            return getAssessmentsUserByCursor(size, user, cursor);
+        }
         //recuperamos las valoraciones obtenidas
         Optional<Page<Assessment>> result = assessments.getAssessmentsUser(page, size, user);
 
@@ -301,19 +322,19 @@ public class UserController {
 
         //creamos los enlaces correspondientes
         Link self = linkTo(
-                methodOn(UserController.class).getAssessmentsUser(page, size, user)
+                methodOn(UserController.class).getAssessmentsUser(page, size, user, null)
         ).withSelfRel();
         Link first = linkTo(
-                methodOn(UserController.class).getAssessmentsUser(metadata.first().getPageNumber(), size, user)
+                methodOn(UserController.class).getAssessmentsUser(metadata.first().getPageNumber(), size, user, null)
         ).withRel(IanaLinkRelations.FIRST);
         Link next = linkTo(
-                methodOn(UserController.class).getAssessmentsUser(metadata.next().getPageNumber(), size, user)
+                methodOn(UserController.class).getAssessmentsUser(metadata.next().getPageNumber(), size, user, null)
         ).withRel(IanaLinkRelations.NEXT);
         Link previous = linkTo(
-                methodOn(UserController.class).getAssessmentsUser(metadata.previousOrFirst().getPageNumber(), size, user)
+                methodOn(UserController.class).getAssessmentsUser(metadata.previousOrFirst().getPageNumber(), size, user, null)
         ).withRel(IanaLinkRelations.PREVIOUS);
         Link last = linkTo(
-                methodOn(UserController.class).getAssessmentsUser(data.getTotalPages() - 1, size, user)
+                methodOn(UserController.class).getAssessmentsUser(data.getTotalPages() - 1, size, user, null)
         ).withRel(IanaLinkRelations.LAST);
 
         //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
@@ -323,9 +344,51 @@ public class UserController {
                 .header(HttpHeaders.LINK, next.toString())
                 .header(HttpHeaders.LINK, previous.toString())
                 .header(HttpHeaders.LINK, last.toString())
+                .header("X-Total-Count-Type", CountedPage.type(data))
                 .body(result.get());
     }
 
+    //recupera las valoraciones del usuario paginando por cursor, de forma que el enlace next lleva el cursor de la siguiente página
+    private ResponseEntity<Slice<Assessment>> getAssessmentsUserByCursor(int size, String user, String cursor) {
+        Optional<CursorSlice<Assessment>> result;
+        try {
+            result = assessments.getAssessmentsUser(cursor, size, user);
+        } catch (IllegalArgumentException e) {
+            //devolvemos código de error 400 si el cursor no es válido
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+
+        //si no hay ninguna valoración guardada
+        if (!result.isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Assessments not found");
+        }
+        //guardamos los resultados obtenidos
+        CursorSlice<Assessment> data = result.get();
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(UserController.class).getAssessmentsUser(0, size, user, cursor)
+        ).withSelfRel();
+        Link first = linkTo(
+                methodOn(UserController.class).getAssessmentsUser(0, size, user, "")
+        ).withRel(IanaLinkRelations.FIRST);
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, first.toString());
+        //solo hay enlace a la siguiente página si quedan valoraciones
+        if (data.getNextCursor() != null) {
+            Link next = linkTo(
+                    methodOn(UserController.class).getAssessmentsUser(0, size, user, data.getNextCursor())
+            ).withRel(IanaLinkRelations.NEXT);
+            response.header(HttpHeaders.LINK, next.toString());
+        }
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return response.body(data);
+    }
+
     //método GET al recuperar un amigo de un usuario
     //link al servicio en users/{user}/friendships/{friend}, produces lo que devuelve
     @GetMapping(
@@ -402,7 +465,7 @@ public class UserController {
         List<String> sort = new ArrayList<>();
         sort.add("");
         Link all = linkTo(
-                methodOn(UserController.class).getFriends(0, 0, sort, result.get().getUser())
+                methodOn(UserController.class).getFriends(0, 0, sort, result.get().getUser(), null)
         ).withRel(relationProvider.getItemResourceRelFor(Friendship.class));
         Link userLink = linkTo(
                 methodOn(UserController.class).get(user)
@@ -466,7 +529,7 @@ public class UserController {
     })
     //si es el propio usuario
     @PreAuthorize("#user == principal")
-    ResponseEntity<Page<Friendship>> getFriends(
+    ResponseEntity<Slice<Friendship>> getFriends(
             @Parameter(name = "Page of the search")
             @RequestParam(name = "page", defaultValue = "0") int page,
             @Parameter(name = "Size of the search")
@@ -474,12 +537,18 @@ public class UserController {
             @Parameter(name = "Sort of the search")
             @RequestParam(name = "sort", defaultValue = "") List<String> sort,
             @Parameter(name = "id", required = true)
-            @PathVariable("id") String user
+            @PathVariable("id") String user,
+            @Parameter(name = "Cursor of the search, empty to get the first page by cursor")
+            @RequestParam(name = "cursor", required = false) String cursor
     ) {
         //si el usuario no existe
         if (!users.get(user).isPresent()) {
             //devolvemos código de error 404 al producirse un error de búsqueda
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+        }
+        //si se pide la búsqueda por cursor, las amistades se ordenan por fecha de creación
+        if (cursor != null) {
+            return getFriendsByCursor(size, user, cursor);
         }//ordenamos por aniversario
         if (sort.contains("+since")) {
             sort.add("+since.year");
@@ -521,20 +590,255 @@ public class UserController {
 
         //creamos los enlaces correspondientes
         Link self = linkTo(
-                methodOn(UserController.class).getFriends(page, size, sort, user)
+                methodOn(UserController.class).getFriends(page, size, sort, user, null)
+        ).withSelfRel();
+        Link first = linkTo(
+                methodOn(UserController.class).getFriends(metadata.first().getPageNumber(), size, sort, user, null)
+        ).withRel(IanaLinkRelations.FIRST);
+        Link next = linkTo(
+                methodOn(UserController.class).getFriends(metadata.next().getPageNumber(), size, sort, user, null)
+        ).withRel(IanaLinkRelations.NEXT);
+        Link previous = linkTo(
+                methodOn(UserController.class).getFriends(metadata.previousOrFirst().getPageNumber(), size, sort, user, null)
+        ).withRel(IanaLinkRelations.PREVIOUS);
+        Link last = linkTo(
+                methodOn(UserController.class).getFriends(data.getTotalPages() - 1, size, sort, user, null)
+        ).withRel(IanaLinkRelations.LAST);
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, first.toString())
+                .header(HttpHeaders.LINK, next.toString())
+                .header(HttpHeaders.LINK, previous.toString())
+                .header(HttpHeaders.LINK, last.toString())
+                .body(result.get());
+    }
+
+    //recupera las amistades del usuario paginando por cursor, de forma que el enlace next lleva el cursor de la siguiente página
+    private ResponseEntity<Slice<Friendship>> getFriendsByCursor(int size, String user, String cursor) {
+        Optional<CursorSlice<Friendship>> result;
+        try {
+            result = friendships.getFriends(cursor, size, user);
+        } catch (IllegalArgumentException e) {
+            //devolvemos código de error 400 si el cursor no es válido
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+
+        //si la lista está vacía
+        if (!result.isPresent()) {
+            //devolvemos código 204 al ir todo bien, pero no encontrar amigos
+            throw new ResponseStatusException(HttpStatus.NO_CONTENT, "User do not have any friends");
+        }
+        //guardamos los resultados obtenidos
+        CursorSlice<Friendship> data = result.get();
+
+        //creamos los enlaces correspondientes
+        List<String> sort = new ArrayList<>();
+        sort.add("");
+        Link self = linkTo(
+                methodOn(UserController.class).getFriends(0, size, sort, user, cursor)
+        ).withSelfRel();
+        Link first = linkTo(
+                methodOn(UserController.class).getFriends(0, size, sort, user, "")
+        ).withRel(IanaLinkRelations.FIRST);
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, first.toString());
+        //solo hay enlace a la siguiente página si quedan amistades
+        if (data.getNextCursor() != null) {
+            Link next = linkTo(
+                    methodOn(UserController.class).getFriends(0, size, sort, user, data.getNextCursor())
+            ).withRel(IanaLinkRelations.NEXT);
+            response.header(HttpHeaders.LINK, next.toString());
+        }
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return response.body(data);
+    }
+
+    //método GET al recuperar las solicitudes de amistad pendientes que ha recibido un usuario
+    //link al servicio en users/{id}/requests, produces lo que devuelve
+    @GetMapping(
+            path = "{id}/requests",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @Operation(
+            operationId = "getFriendshipRequests",
+            summary = "Gets the pending friendship requests of an user",
+            description = "Get the friendships requested to the user that are not accepted yet, oldest first. " +
+                    "To see the requests you must be the requested user."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "The pending friendship requests",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = Friendship.class)
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "204",
+                    description = "User do not have any pending requests",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "400",
+                    description = "Invalid cursor",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "User not found",
+                    content = @Content
+            )
+    })
+    //si es el propio usuario
+    @PreAuthorize("#user == principal")
+    ResponseEntity<Slice<Friendship>> getRequests(
+            @Parameter(name = "Size of the search")
+            @RequestParam(name = "size", defaultValue = "20") int size,
+            @Parameter(name = "id", required = true)
+            @PathVariable("id") String user,
+            @Parameter(name = "Cursor of the search")
+            @RequestParam(name = "cursor", required = false) String cursor
+    ) {
+        //si el usuario no existe
+        if (!users.get(user).isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+        }
+        Optional<CursorSlice<Friendship>> result;
+        try {
+            result = friendships.getRequests(cursor, size, user);
+        } catch (IllegalArgumentException e) {
+            //devolvemos código de error 400 si el cursor no es válido
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+
+        //si no hay solicitudes pendientes
+        if (!result.isPresent()) {
+            //devolvemos código 204 al ir todo bien, pero no encontrar solicitudes
+            throw new ResponseStatusException(HttpStatus.NO_CONTENT, "User do not have any pending requests");
+        }
+        //guardamos los resultados obtenidos
+        CursorSlice<Friendship> data = result.get();
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(UserController.class).getRequests(size, user, cursor)
+        ).withSelfRel();
+        Link first = linkTo(
+                methodOn(UserController.class).getRequests(size, user, null)
+        ).withRel(IanaLinkRelations.FIRST);
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, first.toString());
+        //solo hay enlace a la siguiente página si quedan solicitudes
+        if (data.getNextCursor() != null) {
+            Link next = linkTo(
+                    methodOn(UserController.class).getRequests(size, user, data.getNextCursor())
+            ).withRel(IanaLinkRelations.NEXT);
+            response.header(HttpHeaders.LINK, next.toString());
+        }
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return response.body(data);
+    }
+
+    //método GET al recuperar los amigos en común de dos usuarios
+    //link al servicio en users/{user}/friendships/mutual/{other}, produces lo que devuelve
+    @GetMapping(
+            path = "{user}/friendships/mutual/{other}",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @Operation(
+            operationId = "getMutualFriends",
+            summary = "Gets the friends in common of two users",
+            description = "Get the number of confirmed friends that the user has in common with another user, " +
+                    "and a page of them. To see the friends in common you must be the requested user."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "The friends in common",
+                    content = @Content(
+                            mediaType = "application/json"
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "User not found",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "503",
+                    description = "The friends in common are not available yet",
+                    content = @Content
+            )
+    })
+    //si es el propio usuario
+    @PreAuthorize("#user == principal")
+    ResponseEntity<Page<String>> getMutualFriends(
+            @Parameter(name = "Page of the search")
+            @RequestParam(name = "page", defaultValue = "0") int page,
+            @Parameter(name = "Size of the search")
+            @RequestParam(name = "size", defaultValue = "20") int size,
+            @Parameter(name = "user", required = true)
+            @PathVariable("user") String user,
+            @Parameter(name = "other", required = true)
+            @PathVariable("other") String other
+    ) {
+        //si alguno de los usuarios no existe
+        if (!users.get(user).isPresent() || !users.get(other).isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+        }
+        //los amigos en común se calculan en memoria sobre el grafo de amistades
+        Optional<Page<String>> result = friendships.getMutualFriends(page, size, user, other);
+
+        //si el grafo todavía se está cargando
+        if (!result.isPresent()) {
+            //devolvemos código de error 503, pues estarán disponibles en breve
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Friends in common not available yet");
+        }
+        //guardamos los resultados obtenidos
+        Page<String> data = result.get();
+        //paginamos los datos obtenidos
+        Pageable metadata = data.getPageable();
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(UserController.class).getMutualFriends(page, size, user, other)
         ).withSelfRel();
         Link first = linkTo(
-                methodOn(UserController.class).getFriends(metadata.first().getPageNumber(), size, sort, user)
+                methodOn(UserController.class).getMutualFriends(metadata.first().getPageNumber(), size, user, other)
         ).withRel(IanaLinkRelations.FIRST);
         Link next = linkTo(
-                methodOn(UserController.class).getFriends(metadata.next().getPageNumber(), size, sort, user)
+                methodOn(UserController.class).getMutualFriends(metadata.next().getPageNumber(), size, user, other)
         ).withRel(IanaLinkRelations.NEXT);
         Link previous = linkTo(
-                methodOn(UserController.class).getFriends(metadata.previousOrFirst().getPageNumber(), size, sort, user)
+                methodOn(UserController.class).getMutualFriends(metadata.previousOrFirst().getPageNumber(), size, user, other)
         ).withRel(IanaLinkRelations.PREVIOUS);
         Link last = linkTo(
-                methodOn(UserController.class).getFriends(data.getTotalPages() - 1, size, sort, user)
+                methodOn(UserController.class).getMutualFriends(Math.max(data.getTotalPages() - 1, 0), size, user, other)
         ).withRel(IanaLinkRelations.LAST);
+        Link one = linkTo(
+                methodOn(UserController.class).get(null)
+        ).withRel(relationProvider.getItemResourceRelFor(User.class));
 
         //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
         return ResponseEntity.ok()
@@ -543,9 +847,147 @@ public class UserController {
                 .header(HttpHeaders.LINK, next.toString())
                 .header(HttpHeaders.LINK, previous.toString())
                 .header(HttpHeaders.LINK, last.toString())
+                .header(HttpHeaders.LINK, one.toString())
+                .body(data);
+    }
+
+    //método GET al recuperar las sugerencias de amistad de un usuario
+    //link al servicio en users/{id}/suggestions, produces lo que devuelve
+    @GetMapping(
+            path = "{id}/suggestions",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @Operation(
+            operationId = "getSuggestions",
+            summary = "Gets friend suggestions for an user",
+            description = "Get the users that are not friends of the user yet, ordered by the number of " +
+                    "confirmed friends in common. To see the suggestions you must be the requested user."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "The suggested friends",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = Suggestion.class)
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "User not found",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "503",
+                    description = "The suggestions are not available yet",
+                    content = @Content
+            )
+    })
+    //si es el propio usuario
+    @PreAuthorize("#user == principal")
+    ResponseEntity<List<Suggestion>> getSuggestions(
+            @Parameter(name = "Number of suggestions to get")
+            @RequestParam(name = "size", defaultValue = "10") int size,
+            @Parameter(name = "id", required = true)
+            @PathVariable("id") String user
+    ) {
+        //si el usuario no existe
+        if (!users.get(user).isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+        }
+        //las sugerencias se calculan en memoria sobre el grafo de amistades
+        Optional<List<Suggestion>> result = friendships.getSuggestions(user, size);
+
+        //si el grafo todavía se está cargando
+        if (!result.isPresent()) {
+            //devolvemos código de error 503, pues estarán disponibles en breve
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Suggestions not available yet");
+        }
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(UserController.class).getSuggestions(size, user)
+        ).withSelfRel();
+        Link one = linkTo(
+                methodOn(UserController.class).get(null)
+        ).withRel(relationProvider.getItemResourceRelFor(User.class));
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, one.toString())
                 .body(result.get());
     }
 
+    //método GET al recuperar la actividad de los amigos de un usuario
+    //link al servicio en users/{id}/feed, produces lo que devuelve
+    @GetMapping(
+            path = "{id}/feed",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @Operation(
+            operationId = "getFeed",
+            summary = "Gets the latest assessments from the friends of an user",
+            description = "Get the latest assessments written by the confirmed friends of the user, newest first. " +
+                    "To see the feed you must be the requested user."
+    )
+    @ApiResponses({
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "The latest assessments from the friends of the user",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = Assessment.class)
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "403",
+                    description = "Do not have sufficient permissions",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "404",
+                    description = "User not found",
+                    content = @Content
+            )
+    })
+    //si es el propio usuario
+    @PreAuthorize("#user == principal")
+    ResponseEntity<List<Assessment>> getFeed(
+            @Parameter(name = "Number of assessments to get")
+            @RequestParam(name = "size", defaultValue = "20") int size,
+            @Parameter(name = "id", required = true)
+            @PathVariable("id") String user
+    ) {
+        //si el usuario no existe
+        if (!users.get(user).isPresent()) {
+            //devolvemos código de error 404 al producirse un error de búsqueda
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+        }
+        //recuperamos la actividad desde la timeline del usuario
+        List<Assessment> result = feed.get(user, size);
+
+        //creamos los enlaces correspondientes
+        Link self = linkTo(
+                methodOn(UserController.class).getFeed(size, user)
+        ).withSelfRel();
+        Link one = linkTo(
+                methodOn(FilmController.class).getAssessment(null)
+        ).withRel(relationProvider.getItemResourceRelFor(Assessment.class));
+
+        //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, self.toString())
+                .header(HttpHeaders.LINK, one.toString())
+                .body(result);
+    }
+
     //método POST al crear un nuevo usuario
     //consumes, pues necesita los datos del body
     @PostMapping(
@@ -684,13 +1126,18 @@ public class UserController {
             //devolvemos código de error 400 al intentar añadir un amigo inválido
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "User can not be his own friend");
         }
-        //si la amistad ya existe
-        if (friendships.getAllFriends(user).contains(friend.getEmail())) {
+        //si la amistad ya existe, en cualquiera de los dos sentidos
+        if (friendships.exists(user, friend.getEmail())) {
             //devolvemos código de error 409 al producirse un conflicto
             throw new ResponseStatusException(HttpStatus.CONFLICT, "Friendship already exists or not accepted yet");
         }
         //creamos la amistad
         Friendship result = friendships.insert(user, friend.getEmail());
+        //si otra petición la ha creado a la vez
+        if (result == null) {
+            //devolvemos código de error 409 al producirse un conflicto
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Friendship already exists or not accepted yet");
+        }
 
         //creamos los enlaces correspondientes
         Link self = linkTo(
@@ -700,7 +1147,7 @@ public class UserController {
         List<String> sort = new ArrayList<>();
         sort.add("");
         Link all = linkTo(
-                methodOn(UserController.class).getFriends(0, 0, sort, result.getUser())
+                methodOn(UserController.class).getFriends(0, 0, sort, result.getUser(), null)
         ).withRel(relationProvider.getItemResourceRelFor(Friendship.class));
 
         //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
@@ -742,6 +1189,16 @@ public class UserController {
                     description = "User not found",
                     content = @Content
             ),
+            @ApiResponse(
+                    responseCode = "409",
+                    description = "The user is being modified concurrently",
+                    content = @Content
+            ),
+            @ApiResponse(
+                    responseCode = "412",
+                    description = "The user has been modified since the version in If-Match",
+                    content = @Content
+            ),
             @ApiResponse(
                     responseCode = "422",
                     description = "Field can not be modified OR field can not be removed OR " +
@@ -756,7 +1213,9 @@ public class UserController {
             @Parameter(name = "id", required = true)
             @PathVariable("id") String email,
             @Parameter(name = "Updates to be applied to the user", required = true)
-            @RequestBody List<Map<String, Object>> updates
+            @RequestBody List<Map<String, Object>> updates,
+            @Parameter(name = "If-Match", description = "ETag of the version of the user being modified")
+            @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch
     ) {
         //si el usuario no está presente en la base de datos
         if (!users.get(email).isPresent()) {
@@ -779,9 +1238,11 @@ public class UserController {
                 throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "You can not remove the field");
             }
         }
+        //versión del usuario que espera modificar el cliente
+        Long version = ETags.version(ifMatch);
         try {
             //modificamos el usuario
-            User result = users.patch(email, updates);
+            User result = users.patch(email, version, updates);
 
             //creamos los enlaces correspondientes
             Link self = linkTo(
@@ -795,9 +1256,20 @@ public class UserController {
 
             //devolvemos la respuesta de que todo fue bien, con los enlaces en la cabecera, y el cuerpo correspondiente
             return ResponseEntity.ok()
+                    .eTag(ETags.of(result))
                     .header(HttpHeaders.LINK, self.toString())
                     .header(HttpHeaders.LINK, all.toString())
                     .body(result);
+        } catch (OptimisticLockingFailureException e) {
+            //si se indicó la versión, el usuario ha cambiado desde que el cliente lo leyó
+            if (version != null) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "User has been modified");
+            }
+            //si no, otras peticiones lo han modificado cada vez que se intentó aplicar el patch
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "User is being modified concurrently");
+        } catch (SaturatedException e) {
+            //no se pudo codificar la nueva contraseña por exceso de carga: 503 con Retry-After
+            throw e;
         } catch (Exception e) {
             //devolvemos un error del tipo 422, pues la operación no se puede aplicar al objeto a modificar
             throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, "Operation can not be applied to the object");
@@ -882,7 +1354,7 @@ public class UserController {
         List<String> sort = new ArrayList<>();
         sort.add("");
         Link all = linkTo(
-                methodOn(UserController.class).getFriends(0, 0, sort, result.getUser())
+                methodOn(UserController.class).getFriends(0, 0, sort, result.getUser(), null)
         ).withRel(relationProvider.getItemResourceRelFor(Friendship.class));
         Link userLink = linkTo(
                 methodOn(UserController.class).get(user)
@@ -915,14 +1387,20 @@ public class UserController {
     @Operation(
             operationId = "deleteUser",
             summary = "Deletes an user",
-            description = "Deletes an user from the database. To delete a user you must be the " +
-                    "requested user."
+            description = "Deletes an user from the database. Its assessments and friendships are deleted " +
+                    "in the background. To delete a user you must be the requested user. The deletion ends " +
+                    "every session of the user, so the linked status of the background deletion can only be " +
+                    "read by admins."
     )
     @ApiResponses({
             @ApiResponse(
-                    responseCode = "204",
-                    description = "The user was deleted",
-                    content = @Content
+                    responseCode = "202",
+                    description = "The user was deleted, and its assessments and friendships are being deleted. " +
+                            "The body is the initial status of the deletion",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = CascadeJob.class)
+                    )
             ),
             @ApiResponse(
                     responseCode = "403",
@@ -938,7 +1416,7 @@ public class UserController {
     //recoge la variable del id, pues necesita buscar el email para eliminar el usuario
     //solo puede el propio usuario
     @PreAuthorize("#email == principal")
-    ResponseEntity<User> delete(
+    ResponseEntity<CascadeJob> delete(
             @Parameter(name = "id", required = true)
             @PathVariable("id") String email
     ) {
@@ -949,21 +1427,8 @@ public class UserController {
         }
         //eliminamos el usuario
         users.delete(email);
-        //eliminamos los comentarios de dicho usuario
-        for (Assessment a : assessments.getAll()) {
-            if (a.getUser().getEmail().equals(email)) {
-                assessments.delete(a.getId());
-            }
-        }
-        //eliminamos las amistades de dicho usuario
-        for (Friendship f : friendships.getAll()) {
-            if (f.getUser().equals(email)) {
-                friendships.delete(f.getId());
-            }
-            if (f.getFriend().equals(email)) {
-                friendships.delete(f.getId());
-            }
-        }
+        //sus comentarios y amistades se eliminan en segundo plano
+        CascadeJob job = cascades.deleteUser(email, email);
 
         //creamos los enlaces correspondientes
         List<String> sort = new ArrayList<>();
@@ -971,11 +1436,16 @@ public class UserController {
         Link all = linkTo(
                 methodOn(UserController.class).get(0, 0, sort, null, null)
         ).withRel(relationProvider.getItemResourceRelFor(User.class));
+        Link status = linkTo(
+                methodOn(CascadeController.class).get(job.getId())
+        ).withRel(relationProvider.getItemResourceRelFor(CascadeJob.class));
 
-        //devolvemos código de error 204 al ir todo bien
-        return ResponseEntity.noContent()
+        //devolvemos código 202, pues el borrado continúa, con el enlace a su estado; el usuario ya no puede
+        //consultarlo, porque sus tokens quedan revocados, pero sí los administradores
+        return ResponseEntity.accepted()
                 .header(HttpHeaders.LINK, all.toString())
-                .build();
+                .header(HttpHeaders.LINK, status.toString())
+                .body(job);
     }
 
     //método DELETE para eliminar una amistad
@@ -1039,7 +1509,7 @@ public class UserController {
         sort.add("");
         //creamos los enlaces correspondientes
         Link all = linkTo(
-                methodOn(UserController.class).getFriends(0, 0, sort, user)
+                methodOn(UserController.class).getFriends(0, 0, sort, user, null)
         ).withRel(relationProvider.getItemResourceRelFor(Friendship.class));
 
         //devolvemos código de error 204 al ir todo bien
@@ -2,8 +2,13 @@ package gal.usc.etse.grei.es.project.filter;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import gal.usc.etse.grei.es.project.service.KeyRing;
+import gal.usc.etse.grei.es.project.service.SaturatedException;
+import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.Jwts;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -19,18 +24,20 @@ import java.io.IOException;
 import java.security.Key;
 import java.time.Duration;
 import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 public class AuthenticationFilter extends UsernamePasswordAuthenticationFilter {
     private final AuthenticationManager manager;
-    private final Key key;
+    private final KeyRing keys;
+    // Duración dos tokens
+    private final long duration;
 
-    // Establecemos unha duración para os tokens
-    private final static long TOKEN_DURATION = Duration.ofMinutes(60).toMillis();
-
-    public AuthenticationFilter(AuthenticationManager manager, Key key) {
+    public AuthenticationFilter(AuthenticationManager manager, KeyRing keys, Duration duration) {
         this.manager = manager;
-        this.key = key;
+        this.keys = keys;
+        this.duration = duration.toMillis();
     }
 
     // Método que tenta autenticar ao usuario a partir da chamada HTTP
@@ -47,6 +54,12 @@ public class AuthenticationFilter extends UsernamePasswordAuthenticationFilter {
                             credentials.get("password").textValue()
                     )
             );
+        } catch (SaturatedException ex) {
+            // Se non hai capacidade para verificar o contrasinal, respondemos cun 503 indicando cando reintentar;
+            // devolvendo null o filtro non continúa coa cadea
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, ex.getRetryAfterSeconds());
+            return null;
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -64,18 +77,25 @@ public class AuthenticationFilter extends UsernamePasswordAuthenticationFilter {
                 .map(GrantedAuthority::getAuthority)
                 .collect(Collectors.joining(","));
 
+        // Obtemos a clave de firmado actual, compartida por todas as instancias
+        Map.Entry<String, Key> key = keys.signing();
+
         // Creamos o token JWT empregando o builder
         JwtBuilder tokenBuilder = Jwts.builder()
+                // Indicamos na cabeceira a clave coa que se asina, para poder verificalo en calquera instancia
+                .setHeaderParam(JwsHeader.KEY_ID, key.getKey())
+                // Identificamos o token, para poder revogalo antes de que caduque
+                .setId(UUID.randomUUID().toString())
                 // Establecemos como "propietario" do token ao usuario que fixo login
                 .setSubject(((User) authResult.getPrincipal()).getUsername())
                 // Establecemos a data de emisión do token
                 .setIssuedAt(new Date(now))
                 // Establecemos a data máxima de validez do token
-                .setExpiration(new Date(now + TOKEN_DURATION))
+                .setExpiration(new Date(now + duration))
                 // Engadimos un atributo máis ao corpo do token cos roles do usuario
                 .claim("roles", authorities)
                 // Asinamos o token coa nosa clave secreta
-                .signWith(key);
+                .signWith(key.getValue());
 
         // Engadimos o token á resposta na cabeceira "Authentication"
         response.addHeader("Authentication", String.format("Bearer %s", tokenBuilder.compact()));
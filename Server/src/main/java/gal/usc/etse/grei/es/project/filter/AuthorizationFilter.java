@@ -1,8 +1,17 @@
 package gal.usc.etse.grei.es.project.filter;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import gal.usc.etse.grei.es.project.service.KeyRing;
+import gal.usc.etse.grei.es.project.service.RevocationService;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.security.SignatureException;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.GrantedAuthority;
@@ -15,15 +24,64 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class AuthorizationFilter extends BasicAuthenticationFilter {
-    private final Key key;
+    // Número máximo de tokens verificados que se gardan en memoria
+    private static final long CACHE_SIZE = 10_000;
 
-    public AuthorizationFilter(AuthenticationManager manager, Key key) {
+    private final JwtParser parser;
+    // Tokens xa verificados, indexados polo seu resumo SHA-256, xunto co instante no que caducan
+    private final Cache<String, Verified> verified;
+    // Tokens revogados antes de caducar
+    private final RevocationService revocations;
+
+    public AuthorizationFilter(AuthenticationManager manager, KeyRing keys, RevocationService revocations) {
         super(manager);
-        this.key = key;
+        this.revocations = revocations;
+        // O parser é inmutable e seguro entre fíos, polo que o creamos unha soa vez; a clave búscase
+        // en memoria polo identificador da cabeceira kid do token
+        this.parser = Jwts.parserBuilder()
+                .setSigningKeyResolver(new SigningKeyResolverAdapter() {
+                    // jjwt declara a cabeceira sen parámetro de tipo, e con JwsHeader<?> o método xa non a sobrescribe
+                    @Override
+                    @SuppressWarnings("rawtypes")
+                    public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                        Key key = keys.get(header.getKeyId());
+                        if (key == null) {
+                            throw new SignatureException("Unknown signing key " + header.getKeyId());
+                        }
+                        return key;
+                    }
+                })
+                .build();
+        // Cada entrada caduca á vez que o seu token, para que un token caducado volva a verificarse e se rexeite
+        this.verified = Caffeine.newBuilder()
+                .maximumSize(CACHE_SIZE)
+                .expireAfter(new Expiry<String, Verified>() {
+                    @Override
+                    public long expireAfterCreate(String key, Verified value, long currentTime) {
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, value.expiration - System.currentTimeMillis()));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Verified value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Verified value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
     }
 
     // Método a executar cando se comproba o control de acceso
@@ -41,7 +99,15 @@ public class AuthorizationFilter extends BasicAuthenticationFilter {
             }
 
             // No caso de que o token sexa un JWT, comprobamos que sexa valido
-            UsernamePasswordAuthenticationToken authentication = getAuthentication(header);
+            Verified token = getAuthentication(header);
+            UsernamePasswordAuthenticationToken authentication = token == null ? null : token.authentication;
+
+            // Se o token foi revogado (logout ou usuario eliminado) devolvemos un erro 401; a comprobación faise
+            // en memoria, tamén para os tokens xa verificados
+            if (token != null && revocations.isRevoked(token.id, token.subject, token.issuedAt)) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
 
             // Se o token era válido, establecemolo no contexto de seguridade de Spring para poder empregalo
             // nos nosos servizos
@@ -54,23 +120,69 @@ public class AuthorizationFilter extends BasicAuthenticationFilter {
         }
     }
 
-    private UsernamePasswordAuthenticationToken getAuthentication(String token) throws ExpiredJwtException {
-        // Creamos un parser para o token coa clave de firmado da nosa aplicación
-        Claims claims = Jwts.parserBuilder()
-                .setSigningKey(key)
-                .build()
-                // Parseamos o corpo do token
-                .parseClaimsJws(token.replace("Bearer", "").trim())
-                .getBody();
+    private Verified getAuthentication(String token) throws ExpiredJwtException {
+        String jwt = token.replace("Bearer", "").trim();
+
+        // Se o token xa se verificou e non caducou, reutilizamos a autenticación
+        String digest = digest(jwt);
+        Verified cached = verified.getIfPresent(digest);
+        if (cached != null && cached.expiration > System.currentTimeMillis()) {
+            return cached;
+        }
+
+        // Parseamos o corpo do token coa clave de firmado da nosa aplicación
+        Claims claims = parser.parseClaimsJws(jwt).getBody();
 
         // Obtemos o nome do propietario do token
         String user = claims.getSubject();
+        if (user == null) {
+            return null;
+        }
 
         // Obtemos o listado de roles do usuario
         List<GrantedAuthority> authorities = AuthorityUtils.commaSeparatedStringToAuthorityList(claims.get("roles").toString());
 
-        // Devolvemos o token interno de Spring, que será engadido no contexto.
-        return user == null ? null : new UsernamePasswordAuthenticationToken(user, token, authorities);
+        // Creamos o token interno de Spring, que será engadido no contexto.
+        UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(user, token, authorities);
+        // Gardamos os claims do token, que necesita o logout para revogalo
+        authentication.setDetails(claims);
+
+        Verified result = new Verified(authentication, claims.getId(), user, claims.getIssuedAt(),
+                claims.getExpiration() == null ? Long.MAX_VALUE : claims.getExpiration().getTime());
+        // Só gardamos os tokens con data de caducidade, para non aceptalos indefinidamente
+        if (claims.getExpiration() != null) {
+            verified.put(digest, result);
+        }
+        return result;
     }
 
+    // Resumo do token, para non gardar os tokens completos como claves
+    private static String digest(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // Todas as JVM teñen que incluír SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Autenticación dun token verificado, os datos cos que se comproba se foi revogado e instante, en
+    // milisegundos, no que caduca
+    private static class Verified {
+        private final UsernamePasswordAuthenticationToken authentication;
+        private final String id;
+        private final String subject;
+        private final Date issuedAt;
+        private final long expiration;
+
+        private Verified(UsernamePasswordAuthenticationToken authentication, String id, String subject, Date issuedAt,
+                         long expiration) {
+            this.authentication = authentication;
+            this.id = id;
+            this.subject = subject;
+            this.issuedAt = issuedAt;
+            this.expiration = expiration;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package gal.usc.etse.grei.es.project.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import io.swagger.v3.oas.annotations.media.Schema;
 import org.springframework.data.annotation.Id;
@@ -11,7 +12,7 @@ import java.util.StringJoiner;
 
 @Document(collection = "comments")
 @JsonInclude(JsonInclude.Include.NON_NULL)
-public class Assessment {
+public class Assessment implements Versioned {
     @Id
     private String id;
     @NotNull(message = "The rating field can not be empty")
@@ -23,6 +24,9 @@ public class Assessment {
     private Film film;
     @Schema(example = "This film is good.")
     private String comment;
+    //no forma parte de la representación: protege las modificaciones en memoria de escrituras concurrentes
+    @JsonIgnore
+    private Long version;
 
     public Assessment() {
     }
@@ -80,6 +84,17 @@ public class Assessment {
         return this;
     }
 
+    @Override
+    public Long getVersion() {
+        return version;
+    }
+
+    @Override
+    public Assessment setVersion(Long version) {
+        this.version = version;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -101,6 +116,7 @@ public class Assessment {
                 .add("user=" + user)
                 .add("film=" + film)
                 .add("comment='" + comment + "'")
+                .add("version=" + version)
                 .toString();
     }
 }
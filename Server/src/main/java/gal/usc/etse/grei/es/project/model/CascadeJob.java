@@ -0,0 +1,202 @@
+package gal.usc.etse.grei.es.project.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//borrado en segundo plano de los documentos que dependen de un usuario o una película eliminados
+@Document(collection = "cascades")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(
+        name = "CascadeJob",
+        description = "Background deletion of the documents that depend on a deleted user or film"
+)
+public class CascadeJob {
+    @Id
+    private String id;
+    @Schema(example = "user")
+    private String type;
+    @Schema(example = "test@test.com")
+    private String target;
+    @Schema(example = "test@test.com")
+    private String requester;
+    @Schema(example = "RUNNING")
+    private JobStatus status;
+    //documentos eliminados hasta el momento en cada colección
+    @Schema(example = "{\"comments\": 1500, \"friends\": 20}")
+    private Map<String, Long> deleted = new HashMap<>();
+    @Schema(example = "1614556800000")
+    private Long created;
+    @Schema(example = "1614556860000")
+    private Long finished;
+    private String error;
+    //instancia que ejecuta el trabajo, y hasta cuándo (en milisegundos) lo tiene reservado si no lo renueva
+    @JsonIgnore
+    private String owner;
+    @JsonIgnore
+    private Long lease;
+    //número del último lote de valoraciones marcado para eliminar
+    @JsonIgnore
+    private Long batch;
+
+    public CascadeJob() {
+    }
+
+    public CascadeJob(String id, String type, String target, String requester, JobStatus status, Map<String, Long> deleted, Long created, Long finished, String error) {
+        this.id = id;
+        this.type = type;
+        this.target = target;
+        this.requester = requester;
+        this.status = status;
+        this.deleted = deleted;
+        this.created = created;
+        this.finished = finished;
+        this.error = error;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public CascadeJob setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public CascadeJob setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public CascadeJob setTarget(String target) {
+        this.target = target;
+        return this;
+    }
+
+    public String getRequester() {
+        return requester;
+    }
+
+    public CascadeJob setRequester(String requester) {
+        this.requester = requester;
+        return this;
+    }
+
+    public JobStatus getStatus() {
+        return status;
+    }
+
+    public CascadeJob setStatus(JobStatus status) {
+        this.status = status;
+        return this;
+    }
+
+    public Map<String, Long> getDeleted() {
+        return deleted;
+    }
+
+    public CascadeJob setDeleted(Map<String, Long> deleted) {
+        this.deleted = deleted;
+        return this;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public CascadeJob setCreated(Long created) {
+        this.created = created;
+        return this;
+    }
+
+    public Long getFinished() {
+        return finished;
+    }
+
+    public CascadeJob setFinished(Long finished) {
+        this.finished = finished;
+        return this;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public CascadeJob setError(String error) {
+        this.error = error;
+        return this;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public CascadeJob setOwner(String owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    public Long getLease() {
+        return lease;
+    }
+
+    public CascadeJob setLease(Long lease) {
+        this.lease = lease;
+        return this;
+    }
+
+    public Long getBatch() {
+        return batch;
+    }
+
+    public CascadeJob setBatch(Long batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CascadeJob that = (CascadeJob) o;
+        return Objects.equals(id, that.id) && Objects.equals(type, that.type) && Objects.equals(target, that.target) && Objects.equals(requester, that.requester) && status == that.status && Objects.equals(deleted, that.deleted) && Objects.equals(created, that.created) && Objects.equals(finished, that.finished) && Objects.equals(error, that.error) && Objects.equals(owner, that.owner) && Objects.equals(lease, that.lease) && Objects.equals(batch, that.batch);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, type, target, requester, status, deleted, created, finished, error, owner, lease, batch);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", CascadeJob.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("type='" + type + "'")
+                .add("target='" + target + "'")
+                .add("requester='" + requester + "'")
+                .add("status=" + status)
+                .add("deleted=" + deleted)
+                .add("created=" + created)
+                .add("finished=" + finished)
+                .add("error='" + error + "'")
+                .add("owner='" + owner + "'")
+                .add("lease=" + lease)
+                .add("batch=" + batch)
+                .toString();
+    }
+}
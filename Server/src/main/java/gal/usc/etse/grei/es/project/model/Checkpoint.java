@@ -0,0 +1,63 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//posición hasta la que un proceso en segundo plano ha procesado una colección
+@Document(collection = "checkpoints")
+public class Checkpoint {
+    @Id
+    private String id;
+    //último id procesado
+    private String position;
+
+    public Checkpoint() {
+    }
+
+    public Checkpoint(String id, String position) {
+        this.id = id;
+        this.position = position;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Checkpoint setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getPosition() {
+        return position;
+    }
+
+    public Checkpoint setPosition(String position) {
+        this.position = position;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Checkpoint that = (Checkpoint) o;
+        return Objects.equals(id, that.id) && Objects.equals(position, that.position);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, position);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Checkpoint.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("position='" + position + "'")
+                .toString();
+    }
+}
@@ -1,5 +1,6 @@
 package gal.usc.etse.grei.es.project.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import io.swagger.v3.oas.annotations.media.Schema;
 import org.springframework.data.annotation.Id;
@@ -12,7 +13,7 @@ import java.util.StringJoiner;
 
 @Document(collection = "films")
 @JsonInclude(JsonInclude.Include.NON_NULL)
-public class Film {
+public class Film implements Versioned {
     @Id
     private String id;
     @NotBlank(message = "The title field can not be empty")
@@ -40,6 +41,15 @@ public class Film {
     private Integer runtime;
     @Schema(minimum = "0", example = "100000")
     private Long revenue;
+    //se calcula a partir de las valoraciones, no se puede modificar
+    private Rating rating;
+    //no forma parte de la representación: se devuelve en la cabecera ETag
+    @JsonIgnore
+    private Long version;
+    //instante, en milisegundos, de la última modificación, con el que las demás instancias actualizan su índice
+    //de términos
+    @JsonIgnore
+    private Long modified;
 
     public Film() {
     }
@@ -207,17 +217,46 @@ public class Film {
         return this;
     }
 
+    public Rating getRating() {
+        return rating;
+    }
+
+    public Film setRating(Rating rating) {
+        this.rating = rating;
+        return this;
+    }
+
+    @Override
+    public Long getVersion() {
+        return version;
+    }
+
+    @Override
+    public Film setVersion(Long version) {
+        this.version = version;
+        return this;
+    }
+
+    public Long getModified() {
+        return modified;
+    }
+
+    public Film setModified(Long modified) {
+        this.modified = modified;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Film film = (Film) o;
-        return Objects.equals(id, film.id) && Objects.equals(title, film.title) && Objects.equals(overview, film.overview) && Objects.equals(tagline, film.tagline) && Objects.equals(collection, film.collection) && Objects.equals(genres, film.genres) && Objects.equals(releaseDate, film.releaseDate) && Objects.equals(keywords, film.keywords) && Objects.equals(producers, film.producers) && Objects.equals(crew, film.crew) && Objects.equals(cast, film.cast) && Objects.equals(resources, film.resources) && Objects.equals(budget, film.budget) && status == film.status && Objects.equals(runtime, film.runtime) && Objects.equals(revenue, film.revenue);
+        return Objects.equals(id, film.id) && Objects.equals(title, film.title) && Objects.equals(overview, film.overview) && Objects.equals(tagline, film.tagline) && Objects.equals(collection, film.collection) && Objects.equals(genres, film.genres) && Objects.equals(releaseDate, film.releaseDate) && Objects.equals(keywords, film.keywords) && Objects.equals(producers, film.producers) && Objects.equals(crew, film.crew) && Objects.equals(cast, film.cast) && Objects.equals(resources, film.resources) && Objects.equals(budget, film.budget) && status == film.status && Objects.equals(runtime, film.runtime) && Objects.equals(revenue, film.revenue) && Objects.equals(rating, film.rating);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, title, overview, tagline, collection, genres, releaseDate, keywords, producers, crew, cast, resources, budget, status, runtime, revenue);
+        return Objects.hash(id, title, overview, tagline, collection, genres, releaseDate, keywords, producers, crew, cast, resources, budget, status, runtime, revenue, rating);
     }
 
     @Override
@@ -239,6 +278,9 @@ public class Film {
                 .add("status=" + status)
                 .add("runtime=" + runtime)
                 .add("revenue=" + revenue)
+                .add("rating=" + rating)
+                .add("version=" + version)
+                .add("modified=" + modified)
                 .toString();
     }
 }
@@ -0,0 +1,135 @@
+package gal.usc.etse.grei.es.project.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//vista reducida de una película, con los campos que se muestran en el listado
+@Document(collection = "films")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(
+        name = "FilmSummary",
+        description = "A reduced film representation used in film listings"
+)
+public class FilmSummary {
+    //campos que se recuperan de la base de datos al construir la vista
+    public static final String[] FIELDS = {"_id", "title", "overview", "genres", "releaseDate", "resources", "rating"};
+
+    @Id
+    private String id;
+    @Schema(example = "1917")
+    private String title;
+    @Schema(example = "The story of the film is a war in France during the 90s.")
+    private String overview;
+    @Schema(example = "[\"Drama\", \"Comedy\"]")
+    private List<String> genres;
+    private Date releaseDate;
+    private List<Resource> resources;
+    private Rating rating;
+
+    public FilmSummary() {
+    }
+
+    public FilmSummary(String id, String title, String overview, List<String> genres, Date releaseDate, List<Resource> resources) {
+        this.id = id;
+        this.title = title;
+        this.overview = overview;
+        this.genres = genres;
+        this.releaseDate = releaseDate;
+        this.resources = resources;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public FilmSummary setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public FilmSummary setTitle(String title) {
+        this.title = title;
+        return this;
+    }
+
+    public String getOverview() {
+        return overview;
+    }
+
+    public FilmSummary setOverview(String overview) {
+        this.overview = overview;
+        return this;
+    }
+
+    public List<String> getGenres() {
+        return genres;
+    }
+
+    public FilmSummary setGenres(List<String> genres) {
+        this.genres = genres;
+        return this;
+    }
+
+    public Date getReleaseDate() {
+        return releaseDate;
+    }
+
+    public FilmSummary setReleaseDate(Date releaseDate) {
+        this.releaseDate = releaseDate;
+        return this;
+    }
+
+    public List<Resource> getResources() {
+        return resources;
+    }
+
+    public FilmSummary setResources(List<Resource> resources) {
+        this.resources = resources;
+        return this;
+    }
+
+    public Rating getRating() {
+        return rating;
+    }
+
+    public FilmSummary setRating(Rating rating) {
+        this.rating = rating;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FilmSummary that = (FilmSummary) o;
+        return Objects.equals(id, that.id) && Objects.equals(title, that.title) && Objects.equals(overview, that.overview) && Objects.equals(genres, that.genres) && Objects.equals(releaseDate, that.releaseDate) && Objects.equals(resources, that.resources) && Objects.equals(rating, that.rating);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, title, overview, genres, releaseDate, resources, rating);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", FilmSummary.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("title='" + title + "'")
+                .add("overview='" + overview + "'")
+                .add("genres=" + genres)
+                .add("releaseDate=" + releaseDate)
+                .add("resources=" + resources)
+                .add("rating=" + rating)
+                .toString();
+    }
+}
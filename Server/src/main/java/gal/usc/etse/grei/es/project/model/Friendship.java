@@ -1,5 +1,6 @@
 package gal.usc.etse.grei.es.project.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import io.swagger.v3.oas.annotations.media.Schema;
 import org.springframework.data.annotation.Id;
@@ -19,6 +20,9 @@ public class Friendship {
     private String friend;
     private Boolean confirmed;
     private Date since;
+    //los dos usuarios ordenados, para que solo pueda haber una amistad entre ellos sea cual sea quien la pidió
+    @JsonIgnore
+    private String pairKey;
 
     public Friendship() {
     }
@@ -29,6 +33,15 @@ public class Friendship {
         this.friend = friend;
         this.confirmed = confirmed;
         this.since = since;
+        this.pairKey = pairKey(user, friend);
+    }
+
+    //clave de la amistad entre dos usuarios; el espacio no puede formar parte de un email
+    public static String pairKey(String user, String friend) {
+        if (user == null || friend == null) {
+            return null;
+        }
+        return user.compareTo(friend) <= 0 ? user + " " + friend : friend + " " + user;
     }
 
     public String getId() {
@@ -51,6 +64,10 @@ public class Friendship {
         return since;
     }
 
+    public String getPairKey() {
+        return pairKey;
+    }
+
     public Friendship setId(String id) {
         this.id = id;
         return this;
@@ -76,17 +93,22 @@ public class Friendship {
         return this;
     }
 
+    public Friendship setPairKey(String pairKey) {
+        this.pairKey = pairKey;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Friendship friendship = (Friendship) o;
-        return Objects.equals(id, friendship.id) && Objects.equals(user, friendship.user) && Objects.equals(friend, friendship.friend) && Objects.equals(confirmed, friendship.confirmed) && Objects.equals(since, friendship.since);
+        return Objects.equals(id, friendship.id) && Objects.equals(user, friendship.user) && Objects.equals(friend, friendship.friend) && Objects.equals(confirmed, friendship.confirmed) && Objects.equals(since, friendship.since) && Objects.equals(pairKey, friendship.pairKey);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, user, friend, confirmed, since);
+        return Objects.hash(id, user, friend, confirmed, since, pairKey);
     }
 
     @Override
@@ -97,6 +119,7 @@ public class Friendship {
                 .add("friend='" + friend + "'")
                 .add("confirmed=" + confirmed)
                 .add("since=" + since)
+                .add("pairKey='" + pairKey + "'")
                 .toString();
     }
 }
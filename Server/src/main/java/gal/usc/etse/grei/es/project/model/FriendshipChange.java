@@ -0,0 +1,114 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//cambio en las amistades, para que las demás instancias lo apliquen en su grafo en memoria; el documento se
+//elimina solo (índice TTL) cuando ya lo han leído todas
+@Document(collection = "friendchanges")
+public class FriendshipChange {
+    @Id
+    private String id;
+    private String user;
+    //si no hay amigo, se han eliminado todas las amistades del usuario
+    private String friend;
+    private Boolean confirmed;
+    //instante, en milisegundos, del cambio; se aplican en este orden
+    private Long created;
+    private Date expires;
+
+    public FriendshipChange() {
+    }
+
+    public FriendshipChange(String id, String user, String friend, Boolean confirmed, Long created, Date expires) {
+        this.id = id;
+        this.user = user;
+        this.friend = friend;
+        this.confirmed = confirmed;
+        this.created = created;
+        this.expires = expires;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public FriendshipChange setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public FriendshipChange setUser(String user) {
+        this.user = user;
+        return this;
+    }
+
+    public String getFriend() {
+        return friend;
+    }
+
+    public FriendshipChange setFriend(String friend) {
+        this.friend = friend;
+        return this;
+    }
+
+    public Boolean getConfirmed() {
+        return confirmed;
+    }
+
+    public FriendshipChange setConfirmed(Boolean confirmed) {
+        this.confirmed = confirmed;
+        return this;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public FriendshipChange setCreated(Long created) {
+        this.created = created;
+        return this;
+    }
+
+    public Date getExpires() {
+        return expires;
+    }
+
+    public FriendshipChange setExpires(Date expires) {
+        this.expires = expires;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FriendshipChange that = (FriendshipChange) o;
+        return Objects.equals(id, that.id) && Objects.equals(user, that.user) && Objects.equals(friend, that.friend) && Objects.equals(confirmed, that.confirmed) && Objects.equals(created, that.created) && Objects.equals(expires, that.expires);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, user, friend, confirmed, created, expires);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", FriendshipChange.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("user='" + user + "'")
+                .add("friend='" + friend + "'")
+                .add("confirmed=" + confirmed)
+                .add("created=" + created)
+                .add("expires=" + expires)
+                .toString();
+    }
+}
@@ -0,0 +1,5 @@
+package gal.usc.etse.grei.es.project.model;
+
+public enum JobStatus {
+    PENDING, RUNNING, DONE, FAILED;
+}
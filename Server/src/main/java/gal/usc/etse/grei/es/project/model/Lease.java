@@ -0,0 +1,77 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//permiso temporal para que una sola instancia de la aplicación ejecute una tarea
+@Document(collection = "leases")
+public class Lease {
+    //nombre de la tarea
+    @Id
+    private String id;
+    //instancia que tiene el permiso
+    private String owner;
+    //instante, en milisegundos, a partir del cual otra instancia puede quedarse con el permiso
+    private Long expires;
+
+    public Lease() {
+    }
+
+    public Lease(String id, String owner, Long expires) {
+        this.id = id;
+        this.owner = owner;
+        this.expires = expires;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Lease setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Lease setOwner(String owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    public Long getExpires() {
+        return expires;
+    }
+
+    public Lease setExpires(Long expires) {
+        this.expires = expires;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Lease lease = (Lease) o;
+        return Objects.equals(id, lease.id) && Objects.equals(owner, lease.owner) && Objects.equals(expires, lease.expires);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, owner, expires);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Lease.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("owner='" + owner + "'")
+                .add("expires=" + expires)
+                .toString();
+    }
+}
@@ -0,0 +1,123 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//cambio pendiente de copiar en las valoraciones que guardan datos de una película o un usuario
+@Document(collection = "propagations")
+public class Propagation {
+    //tipo y id del documento modificado, para que varios cambios seguidos se propaguen una sola vez
+    @Id
+    private String id;
+    private String type;
+    private String source;
+    //aumenta con cada cambio, para saber si el documento ha vuelto a cambiar durante la propagación
+    private Long revision;
+    private Long created;
+    //instancia que está propagando el cambio, y hasta cuándo lo tiene reservado
+    private String owner;
+    private Long lease;
+
+    public Propagation() {
+    }
+
+    public Propagation(String id, String type, String source, Long revision, Long created) {
+        this.id = id;
+        this.type = type;
+        this.source = source;
+        this.revision = revision;
+        this.created = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Propagation setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Propagation setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Propagation setSource(String source) {
+        this.source = source;
+        return this;
+    }
+
+    public Long getRevision() {
+        return revision;
+    }
+
+    public Propagation setRevision(Long revision) {
+        this.revision = revision;
+        return this;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public Propagation setCreated(Long created) {
+        this.created = created;
+        return this;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Propagation setOwner(String owner) {
+        this.owner = owner;
+        return this;
+    }
+
+    public Long getLease() {
+        return lease;
+    }
+
+    public Propagation setLease(Long lease) {
+        this.lease = lease;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Propagation that = (Propagation) o;
+        return Objects.equals(id, that.id) && Objects.equals(type, that.type) && Objects.equals(source, that.source) && Objects.equals(revision, that.revision) && Objects.equals(created, that.created) && Objects.equals(owner, that.owner) && Objects.equals(lease, that.lease);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, type, source, revision, created, owner, lease);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Propagation.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("type='" + type + "'")
+                .add("source='" + source + "'")
+                .add("revision=" + revision)
+                .add("created=" + created)
+                .add("owner='" + owner + "'")
+                .add("lease=" + lease)
+                .toString();
+    }
+}
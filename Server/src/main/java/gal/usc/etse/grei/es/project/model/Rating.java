@@ -0,0 +1,94 @@
+package gal.usc.etse.grei.es.project.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//valoraciones acumuladas de una película, que se actualizan con cada valoración que se crea, modifica o elimina
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(
+        name = "Rating",
+        description = "Aggregated assessments of a film"
+)
+public class Rating {
+    @Schema(minimum = "0", example = "12")
+    private Long count;
+    @Schema(minimum = "0", example = "87")
+    private Long sum;
+    @Schema(minimum = "1", maximum = "10", example = "7.25")
+    private Double average;
+    @Schema(example = "{\"7\": 8, \"8\": 4}")
+    private Map<String, Long> histogram;
+
+    public Rating() {
+    }
+
+    public Rating(Long count, Long sum, Double average, Map<String, Long> histogram) {
+        this.count = count;
+        this.sum = sum;
+        this.average = average;
+        this.histogram = histogram;
+    }
+
+    public Long getCount() {
+        return count;
+    }
+
+    public Rating setCount(Long count) {
+        this.count = count;
+        return this;
+    }
+
+    public Long getSum() {
+        return sum;
+    }
+
+    public Rating setSum(Long sum) {
+        this.sum = sum;
+        return this;
+    }
+
+    public Double getAverage() {
+        return average;
+    }
+
+    public Rating setAverage(Double average) {
+        this.average = average;
+        return this;
+    }
+
+    public Map<String, Long> getHistogram() {
+        return histogram;
+    }
+
+    public Rating setHistogram(Map<String, Long> histogram) {
+        this.histogram = histogram;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Rating rating = (Rating) o;
+        return Objects.equals(count, rating.count) && Objects.equals(sum, rating.sum) && Objects.equals(average, rating.average) && Objects.equals(histogram, rating.histogram);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(count, sum, average, histogram);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Rating.class.getSimpleName() + "[", "]")
+                .add("count=" + count)
+                .add("sum=" + sum)
+                .add("average=" + average)
+                .add("histogram=" + histogram)
+                .toString();
+    }
+}
@@ -0,0 +1,79 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//token, o conjunto de tokens de un usuario, que deja de aceptarse antes de caducar; el documento se elimina
+//solo (índice TTL) cuando los tokens a los que afecta ya habrían caducado
+@Document(collection = "revocations")
+public class RevokedToken {
+    //"jti:" seguido del identificador del token, o "sub:" seguido del email para todos los tokens del usuario
+    @Id
+    private String id;
+    //instante, en milisegundos, de la revocación; en las de un usuario se rechazan los tokens emitidos hasta él
+    private Long created;
+    //instante a partir del cual los tokens afectados ya han caducado y el documento se puede eliminar
+    private Date expires;
+
+    public RevokedToken() {
+    }
+
+    public RevokedToken(String id, Long created, Date expires) {
+        this.id = id;
+        this.created = created;
+        this.expires = expires;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public RevokedToken setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public RevokedToken setCreated(Long created) {
+        this.created = created;
+        return this;
+    }
+
+    public Date getExpires() {
+        return expires;
+    }
+
+    public RevokedToken setExpires(Date expires) {
+        this.expires = expires;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RevokedToken that = (RevokedToken) o;
+        return Objects.equals(id, that.id) && Objects.equals(created, that.created) && Objects.equals(expires, that.expires);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, created, expires);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", RevokedToken.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("created=" + created)
+                .add("expires=" + expires)
+                .toString();
+    }
+}
@@ -0,0 +1,77 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//clave con la que se firman los tokens, compartida por todas las instancias de la aplicación
+@Document(collection = "keys")
+public class SigningKey {
+    //identificador de la clave, que se indica en la cabecera kid de los tokens
+    @Id
+    private String id;
+    //secreto de HS512 codificado en Base64
+    private String secret;
+    //instante, en milisegundos, en el que se creó la clave
+    private Long created;
+
+    public SigningKey() {
+    }
+
+    public SigningKey(String id, String secret, Long created) {
+        this.id = id;
+        this.secret = secret;
+        this.created = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public SigningKey setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getSecret() {
+        return secret;
+    }
+
+    public SigningKey setSecret(String secret) {
+        this.secret = secret;
+        return this;
+    }
+
+    public Long getCreated() {
+        return created;
+    }
+
+    public SigningKey setCreated(Long created) {
+        this.created = created;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SigningKey that = (SigningKey) o;
+        return Objects.equals(id, that.id) && Objects.equals(secret, that.secret) && Objects.equals(created, that.created);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, secret, created);
+    }
+
+    //el secreto no se incluye, para que no acabe en los logs
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", SigningKey.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("created=" + created)
+                .toString();
+    }
+}
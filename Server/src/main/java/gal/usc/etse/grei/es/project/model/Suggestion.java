@@ -0,0 +1,67 @@
+package gal.usc.etse.grei.es.project.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//usuario sugerido como amigo, con el número de amigos que tiene en común
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(
+        name = "Suggestion",
+        description = "A suggested friend with the number of friends in common"
+)
+public class Suggestion {
+    @Schema(example = "test@test.com")
+    private String user;
+    @Schema(minimum = "1", example = "3")
+    private Integer mutual;
+
+    public Suggestion() {
+    }
+
+    public Suggestion(String user, Integer mutual) {
+        this.user = user;
+        this.mutual = mutual;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Suggestion setUser(String user) {
+        this.user = user;
+        return this;
+    }
+
+    public Integer getMutual() {
+        return mutual;
+    }
+
+    public Suggestion setMutual(Integer mutual) {
+        this.mutual = mutual;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Suggestion that = (Suggestion) o;
+        return Objects.equals(user, that.user) && Objects.equals(mutual, that.mutual);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(user, mutual);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Suggestion.class.getSimpleName() + "[", "]")
+                .add("user='" + user + "'")
+                .add("mutual=" + mutual)
+                .toString();
+    }
+}
@@ -0,0 +1,66 @@
+package gal.usc.etse.grei.es.project.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//valoraciones recientes de los amigos de un usuario, que se añaden al crearlas para leer su actividad de una vez
+@Document(collection = "timelines")
+public class Timeline {
+    //email del usuario
+    @Id
+    private String id;
+    //ids de las valoraciones, de la más reciente a la más antigua y con un número máximo
+    private List<String> entries = new ArrayList<>();
+
+    public Timeline() {
+    }
+
+    public Timeline(String id, List<String> entries) {
+        this.id = id;
+        this.entries = entries;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Timeline setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public List<String> getEntries() {
+        return entries;
+    }
+
+    public Timeline setEntries(List<String> entries) {
+        this.entries = entries;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Timeline timeline = (Timeline) o;
+        return Objects.equals(id, timeline.id) && Objects.equals(entries, timeline.entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, entries);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Timeline.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("entries=" + entries)
+                .toString();
+    }
+}
@@ -0,0 +1,127 @@
+package gal.usc.etse.grei.es.project.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+//puntuación de tendencia de una película, que crece con cada valoración y decae con el tiempo
+@Document(collection = "trending")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(
+        name = "TrendingFilm",
+        description = "A film with its current trending score"
+)
+public class TrendingFilm {
+    @Id
+    private String id;
+    @Schema(example = "1917")
+    private String title;
+    @Schema(minimum = "0", example = "3.75")
+    private Double score;
+    //instante, en milisegundos, en el que la puntuación tenía el valor guardado
+    @JsonIgnore
+    private Long updated;
+    //posición en el ranking, log2(score) + updated / semivida: crece igual que la puntuación actual, pero no
+    //cambia con el tiempo, así que se puede indexar para leer las primeras sin calcular las demás
+    @JsonIgnore
+    private Double rank;
+    //ids de las valoraciones recientes ya sumadas, para no volver a sumarlas cuando se repasan; se guardan junto
+    //con la puntuación, así que tampoco se repiten si el procesado se interrumpe a medias
+    @JsonIgnore
+    private List<String> recent;
+
+    public TrendingFilm() {
+    }
+
+    public TrendingFilm(String id, String title, Double score, Long updated) {
+        this.id = id;
+        this.title = title;
+        this.score = score;
+        this.updated = updated;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public TrendingFilm setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public TrendingFilm setTitle(String title) {
+        this.title = title;
+        return this;
+    }
+
+    public Double getScore() {
+        return score;
+    }
+
+    public TrendingFilm setScore(Double score) {
+        this.score = score;
+        return this;
+    }
+
+    public Long getUpdated() {
+        return updated;
+    }
+
+    public TrendingFilm setUpdated(Long updated) {
+        this.updated = updated;
+        return this;
+    }
+
+    public Double getRank() {
+        return rank;
+    }
+
+    public TrendingFilm setRank(Double rank) {
+        this.rank = rank;
+        return this;
+    }
+
+    public List<String> getRecent() {
+        return recent;
+    }
+
+    public TrendingFilm setRecent(List<String> recent) {
+        this.recent = recent;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TrendingFilm that = (TrendingFilm) o;
+        return Objects.equals(id, that.id) && Objects.equals(title, that.title) && Objects.equals(score, that.score) && Objects.equals(updated, that.updated) && Objects.equals(rank, that.rank) && Objects.equals(recent, that.recent);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, title, score, updated, rank, recent);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", TrendingFilm.class.getSimpleName() + "[", "]")
+                .add("id='" + id + "'")
+                .add("title='" + title + "'")
+                .add("score=" + score)
+                .add("updated=" + updated)
+                .add("rank=" + rank)
+                .add("recent=" + recent)
+                .toString();
+    }
+}
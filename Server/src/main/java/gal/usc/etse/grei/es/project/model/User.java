@@ -1,5 +1,6 @@
 package gal.usc.etse.grei.es.project.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import io.swagger.v3.oas.annotations.media.Schema;
 import org.springframework.data.annotation.Id;
@@ -17,7 +18,7 @@ import java.util.Objects;
         name = "User",
         description = "A complete user representation"
 )
-public class User {
+public class User implements Versioned {
     @Id
     @NotBlank(message = "The email field can not be empty")
     @Email
@@ -37,6 +38,9 @@ public class User {
     private String password;
     @Schema(example = "[\"ROLE_ADMIN\"]")
     private List<String> roles;
+    //no forma parte de la representación: se devuelve en la cabecera ETag
+    @JsonIgnore
+    private Long version;
 
     public User() {
     }
@@ -112,6 +116,17 @@ public class User {
         return this;
     }
 
+    @Override
+    public Long getVersion() {
+        return version;
+    }
+
+    @Override
+    public User setVersion(Long version) {
+        this.version = version;
+        return this;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -135,6 +150,7 @@ public class User {
                 ", birthday=" + birthday +
                 ", password='" + password + '\'' +
                 ", roles=" + roles +
+                ", version=" + version +
                 '}';
     }
 }
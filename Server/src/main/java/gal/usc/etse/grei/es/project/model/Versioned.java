@@ -0,0 +1,8 @@
+package gal.usc.etse.grei.es.project.model;
+
+//documentos con número de versión, que se incrementa en cada modificación para detectar escrituras concurrentes
+public interface Versioned {
+    Long getVersion();
+
+    Versioned setVersion(Long version);
+}
@@ -2,6 +2,12 @@ package gal.usc.etse.grei.es.project.repository;
 
 import gal.usc.etse.grei.es.project.model.User;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+
+import java.util.Optional;
 
 public interface UserRepository extends MongoRepository<User, String> {
+    //lee solo los campos necesarios para autenticar al usuario
+    @Query(value = "{ '_id': ?0 }", fields = "{ '_id': 1, 'password': 1, 'roles': 1 }")
+    Optional<User> findCredentialsById(String email);
 }
@@ -3,41 +3,59 @@ package gal.usc.etse.grei.es.project.service;
 import com.github.fge.jsonpatch.JsonPatchException;
 import gal.usc.etse.grei.es.project.model.Assessment;
 import gal.usc.etse.grei.es.project.repository.AssessmentRepository;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.support.PageableExecutionUtils;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 @Service
 public class AssessmentService {
+    //orden de las valoraciones de un usuario: los _id crecen con la fecha de creación
+    private static final Sort TIMELINE = Sort.by(Sort.Direction.DESC, "_id");
+
     private final AssessmentRepository assessments;
     private final FilmService films;
     private final UserService users;
     private final MongoTemplate mongo;
     private final PatchMethod patchMethod;
+    private final PageMethod pageMethod;
+    private final CountCache counts;
+    private final RequestMemo memo;
+    private final FeedService feed;
+    private final int maxSize;
 
     //Instancias
     @Autowired
-    public AssessmentService(AssessmentRepository assessments, FilmService films, UserService users, MongoTemplate mongo, PatchMethod patchMethod) {
+    public AssessmentService(AssessmentRepository assessments, FilmService films, UserService users, MongoTemplate mongo,
+                             PatchMethod patchMethod, PageMethod pageMethod, CountCache counts,
+                             RequestMemo memo, FeedService feed, @Value("${pagination.max-size:100}") int maxSize) {
         this.assessments = assessments;
         this.films = films;
         this.users = users;
         this.mongo = mongo;
         this.patchMethod = patchMethod;
+        this.pageMethod = pageMethod;
+        this.counts = counts;
+        this.memo = memo;
+        this.feed = feed;
+        this.maxSize = maxSize;
     }
 
     //devuelve la valoración con el id correspondiente
     public Optional<Assessment> get(String id) {
-        return assessments.findById(id);
+        return memo.get(Assessment.class, id, () -> assessments.findById(id));
     }
 
     //devuelve todas las valoraciones
@@ -63,29 +81,54 @@ public class AssessmentService {
         Pageable request = PageRequest.of(page, size);
         Criteria criteria = Criteria.where("_id").exists(true);
         criteria.and("film._id").is(film);
-        Query query = Query.query(criteria).with(request);
-        List<Assessment> result = mongo.find(query, Assessment.class);
+        Page<Assessment> result = pageMethod.page(criteria, request, Assessment.class);
 
         if (result.isEmpty())
             return Optional.empty();
         else
-            return Optional.of(PageableExecutionUtils.getPage(result, request,
-                    () -> mongo.count(Query.query(criteria), Assessment.class)));
+            return Optional.of(result);
     }
 
-    //devuelve las valoraciones del usuario correspondiente
+    //devuelve las valoraciones del usuario correspondiente, de la más reciente a la más antigua
     public Optional<Page<Assessment>> getAssessmentsUser(int page, int size, String user) {
-        Pageable request = PageRequest.of(page, size);
-        Criteria criteria = Criteria.where("_id").exists(true);
-        criteria.and("user._id").is(user);
-        Query query = Query.query(criteria);
-        List<Assessment> result = mongo.find(query, Assessment.class);
+        //limitamos el número de valoraciones que se cargan en memoria en cada petición
+        Pageable request = PageRequest.of(page, PageMethod.size(size, maxSize), TIMELINE);
+        Criteria criteria = Criteria.where("user._id").is(user);
+        Page<Assessment> result = pageMethod.page(criteria, request, Assessment.class);
 
         if (result.isEmpty())
             return Optional.empty();
         else
-            return Optional.of(PageableExecutionUtils.getPage(result, request,
-                    () -> mongo.count(Query.query(criteria), Assessment.class)));
+            return Optional.of(result);
+    }
+
+    //devuelve las valoraciones del usuario paginadas por cursor: con el índice sobre el usuario y el _id, cada
+    //página lee únicamente sus propias valoraciones, por antigua que sea
+    public Optional<CursorSlice<Assessment>> getAssessmentsUser(String cursor, int size, String user) {
+        //limitamos el número de valoraciones que se cargan en memoria en cada petición
+        size = PageMethod.size(size, maxSize);
+        Criteria criteria = Criteria.where("user._id").is(user);
+        //si se pasa un cursor, solo buscamos a partir de él
+        if (cursor != null && !cursor.isEmpty()) {
+            criteria.andOperator(KeysetCursor.decode(cursor, TIMELINE).criteria(TIMELINE));
+        }
+        //pedimos un elemento de más para saber si hay página siguiente
+        Query query = Query.query(criteria).with(TIMELINE).limit(size + 1);
+        List<Document> documents = mongo.find(query, Document.class, mongo.getCollectionName(Assessment.class));
+
+        if (documents.isEmpty())
+            return Optional.empty();
+
+        String next = null;
+        if (documents.size() > size) {
+            documents = documents.subList(0, size);
+            next = KeysetCursor.after(documents.get(size - 1), TIMELINE).encode();
+        }
+        List<Assessment> result = new ArrayList<>();
+        for (Document d : documents) {
+            result.add(mongo.getConverter().read(Assessment.class, d));
+        }
+        return Optional.of(new CursorSlice<>(result, PageRequest.of(0, size, TIMELINE), next));
     }
 
     //inserta la valoración
@@ -98,25 +141,42 @@ public class AssessmentService {
         if (users.get(assessment.getUser().getEmail()).isPresent()) {
             assessment.getUser().setName(users.get(assessment.getUser().getEmail()).get().getName());
         }
-        return assessments.insert(assessment);
+        assessment = assessments.insert(assessment);
+        memo.evict(Assessment.class, assessment.getId());
+        //añadimos la valoración a las de la película
+        films.rate(assessment.getFilm().getId(), null, assessment.getRating());
+        //los totales guardados ya no son válidos
+        counts.invalidate(Assessment.class);
+        //la valoración aparece en la actividad de los amigos del autor
+        feed.fanOut(assessment);
+        return assessment;
     }
 
     //modifica la valoración
     public Assessment patch(String id, List<Map<String, Object>> updates) throws JsonPatchException {
-        //si la valoración se encuentra presente en la base de datos
-        if (this.get(id).isPresent()) {
-            //obtenemos la valoración de la base de datos
-            Assessment assessment = this.get(id).get();
-            //actualizamos los datos con el patch
-            assessment = patchMethod.patch(assessment, updates);
-            //actualizamos en la base de datos
-            return assessments.save(assessment);
+        //aplicamos el patch con una única actualización si es posible, o en memoria comprobando la versión leída;
+        //en ambos casos obtenemos la valoración tal como estaba justo antes de escribirla, así que el cambio en las
+        //valoraciones de la película es exacto aunque haya modificaciones concurrentes
+        Optional<Assessment> previous = patchMethod.previous(Assessment.class, id, null, updates, assessment -> assessment);
+        if (!previous.isPresent()) {
+            return null;
         }
-        return null;
+        memo.evict(Assessment.class, id);
+        //el resultado es el de aplicar el patch sobre la valoración anterior
+        Assessment assessment = patchMethod.patch(previous.get(), updates)
+                .setVersion(PatchMethod.version(previous.get().getVersion()) + 1);
+        films.rate(assessment.getFilm().getId(), previous.get().getRating(), assessment.getRating());
+        return assessment;
     }
 
     //elimina la valoración con el id correspondiente
     public void delete(String id) {
-        assessments.deleteById(id);
+        //eliminamos la valoración recuperándola a la vez, para quitarla de las valoraciones de la película
+        Assessment removed = mongo.findAndRemove(Query.query(Criteria.where("_id").is(id)), Assessment.class);
+        memo.evict(Assessment.class, id);
+        counts.invalidate(Assessment.class);
+        if (removed != null && removed.getFilm() != null) {
+            films.rate(removed.getFilm().getId(), removed.getRating(), null);
+        }
     }
 }
@@ -1,42 +1,90 @@
 package gal.usc.etse.grei.es.project.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import gal.usc.etse.grei.es.project.model.User;
 import gal.usc.etse.grei.es.project.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 @Service
 public class AuthenticationService implements UserDetailsService {
     private final UserRepository users;
+    // Credenciais lidas recentemente, para que os inicios de sesión repetidos non volvan á base de datos;
+    // descártanse ao modificar ou eliminar o usuario
+    private final Cache<String, Credentials> cache;
 
     @Autowired
-    public AuthenticationService(UserRepository users) {
+    public AuthenticationService(UserRepository users, @Value("${auth.cache.ttl:30s}") Duration ttl,
+                                 @Value("${auth.cache.size:10000}") long size, MeterRegistry registry) {
         this.users = users;
+        this.cache = Caffeine.newBuilder()
+                .expireAfterWrite(ttl)
+                .maximumSize(size)
+                .recordStats()
+                .build();
+        // Publicamos os acertos e fallos da caché
+        CaffeineCacheMetrics.monitor(registry, cache, "credentials");
     }
 
     //O método lanzará unha excepción se o usuario non se atopa na base de datos
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        // Buscamos o usuario correspondente ao id proporcionado na base de datos,
-        // e lanzamos a excepción no caso de que non exista
-        User user = users.findById(username).orElseThrow(() -> new UsernameNotFoundException(username));
+        // Buscamos as credenciais do usuario na caché ou, se non están, só o email, o contrasinal e os roles na
+        // base de datos, e lanzamos a excepción no caso de que non exista
+        Credentials credentials = cache.getIfPresent(username);
+        if (credentials == null) {
+            User user = users.findCredentialsById(username).orElseThrow(() -> new UsernameNotFoundException(username));
+            credentials = new Credentials(user.getEmail(), user.getPassword(),
+                    user.getRoles() == null ? Collections.emptyList() : user.getRoles());
+            cache.put(username, credentials);
+        }
 
-        // Creamos o usuario de spring empregando o builder
+        // Creamos o usuario de spring empregando o builder; créase un novo cada vez, pois Spring borra o
+        // contrasinal do obxecto devolto despois da autenticación
         return org.springframework.security.core.userdetails.User.builder()
                 // Establecemos o nome do usuario
-                .username(user.getEmail())
+                .username(credentials.email)
                 // Establecemos o contrasinal do usuario
-                .password(user.getPassword())
+                .password(credentials.password)
                 // Establecemos a lista de roles que ten o usuario.
                 // Por convenio, os roles sempre teñen o prefixo "ROLE_"
                 .authorities(AuthorityUtils.commaSeparatedStringToAuthorityList(
-                        String.join(",", user.getRoles())
+                        String.join(",", credentials.roles)
                 ))
                 // Xeneramos o obxecto do usuario a partir dos datos introducidos no builder
                 .build();
     }
+
+    // Descarta as credenciais gardadas do usuario, ao cambiar o seu contrasinal ou roles ou ao eliminalo
+    public void evict(String email) {
+        if (email != null) {
+            cache.invalidate(email);
+        }
+    }
+
+    // Credenciais dun usuario, inmutables para poder compartilas entre peticións
+    private static class Credentials {
+        private final String email;
+        private final String password;
+        private final List<String> roles;
+
+        private Credentials(String email, String password, List<String> roles) {
+            this.email = email;
+            this.password = password;
+            this.roles = Collections.unmodifiableList(new ArrayList<>(roles));
+        }
+    }
 }
@@ -0,0 +1,292 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.CascadeJob;
+import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.JobStatus;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+//borrado en segundo plano de los documentos que dependen de un usuario o una película: se eliminan por lotes
+//buscando por campos indexados, y el progreso se guarda en la colección cascades para poder consultarlo y
+//retomar el trabajo si el servidor se reinicia. Con varias instancias, cada trabajo lo ejecuta solo la que lo
+//reserva, y otra lo retoma si deja de renovar la reserva
+@Service
+public class CascadeService {
+    private static final Logger log = LoggerFactory.getLogger(CascadeService.class);
+    public static final String USER = "user";
+    public static final String FILM = "film";
+    //campo con el que se marcan las valoraciones de cada lote antes de eliminarlas
+    private static final String TAG = "cascade";
+
+    private final MongoTemplate mongo;
+    private final FilmService films;
+    private final CountCache counts;
+    private final RequestMemo memo;
+    private final FriendshipGraph graph;
+    private final int batch;
+    private final Duration lease;
+    //identificador de esta instancia, con el que reserva los trabajos que ejecuta
+    private final String owner = UUID.randomUUID().toString();
+    //trabajos que esperan en la cola de esta instancia
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    //un único hilo, para que los borrados no compitan entre sí por la base de datos
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cascade");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Instancias
+    @Autowired
+    public CascadeService(MongoTemplate mongo, FilmService films, CountCache counts, RequestMemo memo,
+                          FriendshipGraph graph, @Value("${cascade.batch-size:500}") int batch,
+                          @Value("${cascade.lease:5m}") Duration lease) {
+        this.mongo = mongo;
+        this.films = films;
+        this.counts = counts;
+        this.memo = memo;
+        this.graph = graph;
+        this.batch = batch;
+        this.lease = lease;
+    }
+
+    //devuelve el trabajo de borrado indicado
+    public Optional<CascadeJob> get(String id) {
+        return memo.get(CascadeJob.class, id, () -> Optional.ofNullable(mongo.findById(id, CascadeJob.class)));
+    }
+
+    //programa el borrado de las valoraciones y amistades de un usuario
+    public CascadeJob deleteUser(String email, String requester) {
+        //las amistades dejan de contar desde ya, aunque se borren después
+        graph.remove(email);
+        return submit(USER, email, requester);
+    }
+
+    //programa el borrado de las valoraciones de una película
+    public CascadeJob deleteFilm(String id, String requester) {
+        return submit(FILM, id, requester);
+    }
+
+    //al arrancar, y después periódicamente, se retoman los trabajos que no llegaron a terminar: los pendientes, y
+    //los que estaban en ejecución en una instancia que ha dejado de renovarlos
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${cascade.resume:60000}", fixedDelayString = "${cascade.resume:60000}")
+    public void resume() {
+        Query query = Query.query(new Criteria().orOperator(
+                Criteria.where("status").is(JobStatus.PENDING),
+                Criteria.where("status").is(JobStatus.RUNNING).and("lease").not().gt(System.currentTimeMillis())
+        )).with(Sort.by("created"));
+        query.fields().include("_id");
+        int resumed = 0;
+        for (CascadeJob job : mongo.find(query, CascadeJob.class)) {
+            if (enqueue(job.getId())) {
+                resumed++;
+            }
+        }
+        if (resumed > 0) {
+            log.info("Resuming {} cascade jobs", resumed);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        //los trabajos de esta instancia quedan libres para que otra los retome sin esperar a que caduquen
+        mongo.updateMulti(Query.query(Criteria.where("owner").is(owner).and("status").is(JobStatus.RUNNING)),
+                Update.update("lease", 0L), CascadeJob.class);
+    }
+
+    //guarda el trabajo antes de lanzarlo, para que no se pierda si el servidor se para
+    private CascadeJob submit(String type, String target, String requester) {
+        CascadeJob job = mongo.insert(new CascadeJob()
+                .setType(type)
+                .setTarget(target)
+                .setRequester(requester)
+                .setStatus(JobStatus.PENDING)
+                .setCreated(System.currentTimeMillis()));
+        enqueue(job.getId());
+        return job;
+    }
+
+    //lanza el trabajo, salvo que ya esté esperando en la cola de esta instancia
+    private boolean enqueue(String id) {
+        if (!queued.add(id)) {
+            return false;
+        }
+        executor.submit(() -> {
+            queued.remove(id);
+            run(id);
+        });
+        return true;
+    }
+
+    private void run(String id) {
+        //el trabajo se reserva con una única operación atómica, así que solo lo ejecuta una instancia a la vez:
+        //se puede reservar si está pendiente, o si está en ejecución pero quien lo tenía ha dejado de renovarlo
+        long now = System.currentTimeMillis();
+        Query claim = Query.query(Criteria.where("_id").is(id).orOperator(
+                Criteria.where("status").is(JobStatus.PENDING),
+                Criteria.where("status").is(JobStatus.RUNNING).and("lease").not().gt(now)
+        ));
+        CascadeJob job = mongo.findAndModify(claim, Update.update("status", JobStatus.RUNNING)
+                .set("owner", owner)
+                .set("lease", now + lease.toMillis()), FindAndModifyOptions.options().returnNew(true), CascadeJob.class);
+        if (job == null) {
+            return;
+        }
+        try {
+            String target = job.getTarget();
+            boolean finished;
+            switch (job.getType()) {
+                case USER:
+                    //cada condición usa su propio índice, por eso no se combinan con $or
+                    finished = unrate(id, Criteria.where("user._id").is(target))
+                            && delete(id, Friendship.class, Criteria.where("user").is(target))
+                            && delete(id, Friendship.class, Criteria.where("friend").is(target));
+                    break;
+                case FILM:
+                    //el id de la película puede estar guardado como ObjectId o como texto
+                    List<Object> ids = ObjectId.isValid(target)
+                            ? Arrays.asList(new ObjectId(target), target)
+                            : Collections.singletonList(target);
+                    finished = delete(id, Assessment.class, Criteria.where("film._id").in(ids));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown cascade type " + job.getType());
+            }
+            if (!finished) {
+                log.warn("Cascade job {} was taken over by another instance", id);
+                return;
+            }
+            mongo.updateFirst(owned(id), Update.update("status", JobStatus.DONE)
+                    .set("finished", System.currentTimeMillis()), CascadeJob.class);
+        } catch (RuntimeException e) {
+            log.error("Cascade job {} failed", id, e);
+            mongo.updateFirst(owned(id), Update.update("status", JobStatus.FAILED)
+                    .set("finished", System.currentTimeMillis())
+                    .set("error", e.getMessage()), CascadeJob.class);
+        }
+    }
+
+    //renueva la reserva del trabajo antes de cada lote; si ya no es de esta instancia, se deja de ejecutar
+    private boolean renew(String id) {
+        return mongo.updateFirst(owned(id), Update.update("lease", System.currentTimeMillis() + lease.toMillis()),
+                CascadeJob.class).getMatchedCount() > 0;
+    }
+
+    //elimina por lotes los documentos que cumplen el criterio; devuelve false si el trabajo deja de ser de esta
+    //instancia antes de terminar
+    private boolean delete(String id, Class<?> type, Criteria criteria) {
+        String collection = mongo.getCollectionName(type);
+        List<Document> documents;
+        do {
+            if (!renew(id)) {
+                return false;
+            }
+            Query query = Query.query(criteria).limit(batch);
+            query.fields().include("_id");
+            documents = mongo.find(query, Document.class, collection);
+            if (documents.isEmpty()) {
+                break;
+            }
+            List<Object> ids = documents.stream().map(d -> d.get("_id")).collect(Collectors.toList());
+            long removed = mongo.remove(Query.query(Criteria.where("_id").in(ids)), collection).getDeletedCount();
+            counts.invalidate(type);
+            mongo.updateFirst(byId(id), new Update().inc("deleted." + collection, removed), CascadeJob.class);
+        } while (documents.size() == batch);
+        return true;
+    }
+
+    //elimina por lotes las valoraciones que cumplen el criterio y las descuenta de las películas valoradas, de
+    //forma que cada una se descuente exactamente una vez aunque el trabajo se interrumpa en cualquier punto:
+    //  1. las valoraciones del lote se marcan con una etiqueta que no se ha usado nunca (el número de lote se
+    //     incrementa antes en el trabajo); solo se marcan las que no lo están ya, así que son solo de este lote
+    //  2. se descuentan de cada película con la etiqueta, que la película guarda para no aplicarla dos veces
+    //  3. se eliminan las valoraciones marcadas con la etiqueta, y se quita la etiqueta de las películas
+    //Si el trabajo se retoma, primero termina los lotes marcados que no llegó a eliminar, repitiendo sin efecto
+    //los descuentos que ya hubiese hecho
+    private boolean unrate(String id, Criteria criteria) {
+        String collection = mongo.getCollectionName(Assessment.class);
+        while (true) {
+            if (!renew(id)) {
+                return false;
+            }
+            Query query = Query.query(criteria).addCriteria(Criteria.where(TAG).regex("^" + id + ":")).limit(1);
+            query.fields().include(TAG);
+            Document pending = mongo.findOne(query, Document.class, collection);
+            String tag;
+            if (pending != null) {
+                tag = pending.getString(TAG);
+            } else {
+                CascadeJob job = mongo.findAndModify(owned(id), new Update().inc("batch", 1L),
+                        FindAndModifyOptions.options().returnNew(true), CascadeJob.class);
+                if (job == null) {
+                    return false;
+                }
+                tag = id + ":" + job.getBatch();
+                Query unmarked = Query.query(criteria).addCriteria(Criteria.where(TAG).exists(false)).limit(batch);
+                unmarked.fields().include("_id");
+                List<Object> ids = mongo.find(unmarked, Document.class, collection).stream()
+                        .map(d -> d.get("_id")).collect(Collectors.toList());
+                if (ids.isEmpty()) {
+                    return true;
+                }
+                mongo.updateMulti(Query.query(Criteria.where("_id").in(ids).and(TAG).exists(false)),
+                        Update.update(TAG, tag), collection);
+            }
+
+            Query marked = Query.query(criteria).addCriteria(Criteria.where(TAG).is(tag));
+            marked.fields().include("_id", "film._id", "rating");
+            List<Document> assessments = mongo.find(marked, Document.class, collection);
+            Map<String, Map<Integer, Long>> changes = new HashMap<>();
+            for (Document assessment : assessments) {
+                Document film = assessment.get("film", Document.class);
+                Object rating = assessment.get("rating");
+                if (film == null || film.get("_id") == null || !(rating instanceof Number)) {
+                    continue;
+                }
+                changes.computeIfAbsent(film.get("_id").toString(), key -> new HashMap<>())
+                        .merge(((Number) rating).intValue(), -1L, Long::sum);
+            }
+            changes.forEach((film, change) -> films.rate(film, change, tag));
+
+            List<Object> ids = assessments.stream().map(d -> d.get("_id")).collect(Collectors.toList());
+            long removed = mongo.remove(Query.query(Criteria.where("_id").in(ids).and(TAG).is(tag)), collection)
+                    .getDeletedCount();
+            films.unmark(changes.keySet(), tag);
+            counts.invalidate(Assessment.class);
+            mongo.updateFirst(byId(id), new Update().inc("deleted." + collection, removed), CascadeJob.class);
+        }
+    }
+
+    private Query owned(String id) {
+        return Query.query(Criteria.where("_id").is(id).and("owner").is(owner).and("status").is(JobStatus.RUNNING));
+    }
+
+    private static Query byId(String id) {
+        return Query.query(Criteria.where("_id").is(id));
+    }
+}
@@ -0,0 +1,112 @@
+package gal.usc.etse.grei.es.project.service;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+public class CountCache {
+    //criterio con el que se seleccionan todos los documentos de una colección
+    private static final Document ALL = Criteria.where("_id").exists(true).getCriteriaObject();
+    //número máximo de totales guardados por colección
+    private static final int MAX_ENTRIES = 10000;
+
+    private final MongoTemplate mongo;
+    private final long ttl;
+    private final Map<String, Map<String, Count>> counts = new ConcurrentHashMap<>();
+
+    //Instancias
+    @Autowired
+    public CountCache(MongoTemplate mongo, @Value("${pagination.count-ttl:30s}") Duration ttl) {
+        this.mongo = mongo;
+        this.ttl = ttl.toMillis();
+    }
+
+    //devuelve el total de documentos que cumplen el criterio, guardándolo durante un tiempo
+    public Count count(Criteria criteria, Class<?> type) {
+        String collection = mongo.getCollectionName(type);
+        Document filter = criteria.getCriteriaObject();
+
+        //si no se filtra nada, usamos el total que guarda mongo en los metadatos de la colección
+        if (filter.equals(ALL)) {
+            return new Count(mongo.getCollection(collection).estimatedDocumentCount(), false, 0);
+        }
+
+        Map<String, Count> cached = counts.computeIfAbsent(collection, c -> new ConcurrentHashMap<>());
+        String key = ((Document) normalize(filter)).toJson();
+        long now = System.currentTimeMillis();
+        Count count = cached.get(key);
+        if (count == null || count.expires < now) {
+            count = new Count(mongo.count(Query.query(criteria), type), true, now + ttl);
+            //evitamos que la caché crezca sin límite con filtros distintos
+            if (cached.size() >= MAX_ENTRIES) {
+                cached.clear();
+            }
+            cached.put(key, count);
+        }
+        return count;
+    }
+
+    //descarta los totales guardados de la colección, al haber cambiado sus documentos
+    public void invalidate(Class<?> type) {
+        counts.remove(mongo.getCollectionName(type));
+    }
+
+    //ordena las claves y los valores de los $all, para que filtros equivalentes compartan el total
+    @SuppressWarnings("unchecked")
+    private static Object normalize(Object value) {
+        if (value instanceof Map) {
+            Document result = new Document();
+            for (Map.Entry<String, Object> entry : new TreeMap<>((Map<String, Object>) value).entrySet()) {
+                Object normalized = normalize(entry.getValue());
+                if (entry.getKey().equals("$all") && normalized instanceof List) {
+                    List<Object> values = new ArrayList<>((List<Object>) normalized);
+                    values.sort((a, b) -> String.valueOf(a).compareTo(String.valueOf(b)));
+                    normalized = values;
+                }
+                result.put(entry.getKey(), normalized);
+            }
+            return result;
+        }
+        if (value instanceof List) {
+            List<Object> result = new ArrayList<>();
+            for (Object o : (List<Object>) value) {
+                result.add(normalize(o));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    //total de documentos, indicando si es exacto o estimado
+    public static class Count {
+        private final long total;
+        private final boolean exact;
+        private final long expires;
+
+        private Count(long total, boolean exact, long expires) {
+            this.total = total;
+            this.exact = exact;
+            this.expires = expires;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public boolean isExact() {
+            return exact;
+        }
+    }
+}
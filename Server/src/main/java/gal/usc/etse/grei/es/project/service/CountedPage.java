@@ -0,0 +1,30 @@
+package gal.usc.etse.grei.es.project.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+//página que indica si el total de elementos es exacto o una estimación
+public class CountedPage<T> extends PageImpl<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean exact;
+
+    public CountedPage(List<T> content, Pageable pageable, long total, boolean exact) {
+        super(content, pageable, total);
+        this.exact = exact;
+    }
+
+    @JsonIgnore
+    public boolean isExact() {
+        return exact;
+    }
+
+    //valor de la cabecera que indica el tipo de total de una página
+    public static String type(Page<?> page) {
+        return page instanceof CountedPage && !((CountedPage<?>) page).isExact() ? "estimated" : "exact";
+    }
+}
@@ -0,0 +1,22 @@
+package gal.usc.etse.grei.es.project.service;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.SliceImpl;
+
+import java.util.List;
+
+//porción de resultados obtenida con un cursor, que incluye el cursor de la porción siguiente
+public class CursorSlice<T> extends SliceImpl<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final String nextCursor;
+
+    public CursorSlice(List<T> content, Pageable pageable, String nextCursor) {
+        super(content, pageable, nextCursor != null);
+        this.nextCursor = nextCursor;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,165 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.Timeline;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+//actividad de los amigos de un usuario: al crear una valoración se añade su id a la timeline de cada amigo
+//aceptado del autor, de forma que leer la actividad es leer un documento y las valoraciones que indica. Las
+//valoraciones de los usuarios con demasiados amigos no se reparten, sino que se leen al consultar la actividad
+@Service
+public class FeedService {
+    private static final Logger log = LoggerFactory.getLogger(FeedService.class);
+
+    private final MongoTemplate mongo;
+    private final FriendshipGraph graph;
+    //valoraciones que se guardan en cada timeline
+    private final int size;
+    //amigos a partir de los cuales las valoraciones de un usuario no se reparten
+    private final int fanoutLimit;
+    //el reparto se hace en segundo plano, para no retrasar la creación de la valoración; la cola está acotada, y
+    //si se llena el reparto lo hace la propia petición, que así frena a quien crea valoraciones más deprisa de lo
+    //que se pueden repartir, en lugar de acumularlas en memoria o perderlas
+    private final ThreadPoolExecutor executor;
+    private final Counter inline;
+
+    //Instancias
+    @Autowired
+    public FeedService(MongoTemplate mongo, FriendshipGraph graph, @Value("${feed.size:200}") int size,
+                       @Value("${feed.fanout-limit:1000}") int fanoutLimit, @Value("${feed.queue:1000}") int queue,
+                       MeterRegistry registry) {
+        this.mongo = mongo;
+        this.graph = graph;
+        this.size = size;
+        this.fanoutLimit = fanoutLimit;
+        this.inline = Counter.builder("feed.fanout.inline")
+                .description("Fan-outs run by the request because the queue was full")
+                .register(registry);
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), runnable -> {
+            Thread thread = new Thread(runnable, "feed");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> {
+            //tras cerrar el servicio ya no se reparte nada
+            if (!executor.isShutdown()) {
+                inline.increment();
+                runnable.run();
+            }
+        });
+        Gauge.builder("feed.fanout.queue", executor, e -> e.getQueue().size())
+                .description("Fan-outs waiting for the feed thread")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    //añade la valoración a las timelines de los amigos de su autor
+    public void fanOut(Assessment assessment) {
+        String author = assessment.getUser() == null ? null : assessment.getUser().getEmail();
+        String id = assessment.getId();
+        if (author == null || id == null) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                List<String> friends = confirmed(author);
+                if (friends.isEmpty() || friends.size() > fanoutLimit) {
+                    return;
+                }
+                BulkOperations operations = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Timeline.class);
+                for (String friend : friends) {
+                    //solo se actualizan las timelines existentes; las demás se crean al leerlas por primera vez
+                    operations.updateOne(Query.query(Criteria.where("_id").is(friend)), new Update()
+                            .push("entries").sort(Sort.Direction.DESC).slice(size).each(id));
+                }
+                operations.execute();
+            } catch (RuntimeException e) {
+                log.error("Fan-out of assessment {} failed", id, e);
+            }
+        });
+    }
+
+    //devuelve las valoraciones más recientes de los amigos aceptados del usuario
+    public List<Assessment> get(String user, int size) {
+        size = Math.max(0, Math.min(size, this.size));
+        List<String> friends = confirmed(user);
+        if (size == 0 || friends.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Timeline timeline = mongo.findById(user, Timeline.class);
+        Set<String> ids = new HashSet<>();
+        if (timeline != null) {
+            ids.addAll(timeline.getEntries());
+            //las valoraciones de los amigos con demasiados amigos no están en la timeline
+            List<String> pull = friends.stream().filter(f -> graph.degree(f) > fanoutLimit).collect(Collectors.toList());
+            ids.addAll(latest(pull, size));
+        } else {
+            //la primera vez leemos las valoraciones de todos los amigos y guardamos la timeline
+            List<String> latest = latest(friends, this.size);
+            ids.addAll(latest);
+            try {
+                mongo.insert(new Timeline(user, latest));
+            } catch (DuplicateKeyException e) {
+                //otra petición la ha creado a la vez
+            }
+        }
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //una sola consulta por _id, descartando a quienes ya no son amigos
+        Query query = Query.query(Criteria.where("_id").in(ids).and("user._id").in(friends))
+                .with(Sort.by(Sort.Direction.DESC, "_id"))
+                .limit(size);
+        return mongo.find(query, Assessment.class);
+    }
+
+    //ids de las últimas valoraciones de los usuarios indicados, de la más reciente a la más antigua
+    private List<String> latest(List<String> users, int size) {
+        if (users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Query query = Query.query(Criteria.where("user._id").in(users))
+                .with(Sort.by(Sort.Direction.DESC, "_id"))
+                .limit(size);
+        query.fields().include("_id");
+        return mongo.find(query, Assessment.class).stream().map(Assessment::getId).collect(Collectors.toList());
+    }
+
+    //amigos aceptados del usuario, desde el grafo en memoria, que recoge los cambios de las demás instancias
+    //unos segundos después, o, mientras se carga, desde la base de datos
+    private List<String> confirmed(String user) {
+        return graph.confirmed(user).orElseGet(() -> {
+            Query query = Query.query(new Criteria().orOperator(Criteria.where("user").is(user), Criteria.where("friend").is(user))
+                    .and("confirmed").is(true));
+            return mongo.find(query, Friendship.class).stream()
+                    .map(f -> user.equals(f.getUser()) ? f.getFriend() : f.getUser())
+                    .collect(Collectors.toList());
+        });
+    }
+}
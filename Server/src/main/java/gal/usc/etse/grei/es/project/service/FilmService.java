@@ -1,46 +1,232 @@
 package gal.usc.etse.grei.es.project.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.fge.jsonpatch.JsonPatchException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import gal.usc.etse.grei.es.project.model.Assessment;
 import gal.usc.etse.grei.es.project.model.Film;
 import gal.usc.etse.grei.es.project.model.Date;
+import gal.usc.etse.grei.es.project.model.FilmSummary;
+import gal.usc.etse.grei.es.project.model.Rating;
 import gal.usc.etse.grei.es.project.repository.FilmRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.*;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.support.PageableExecutionUtils;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Service
 public class FilmService {
+    private static final Logger log = LoggerFactory.getLogger(FilmService.class);
+    //etiquetas de los cambios de valoraciones ya aplicados a cada película que se pueden repetir
+    private static final String TAGS = "ratingTags";
     private final FilmRepository films;
     private final MongoTemplate mongo;
     private final PatchMethod patchMethod;
+    private final PageMethod pageMethod;
+    private final CountCache counts;
+    private final FilmTermIndex index;
+    private final int maxIds;
+    private final int maxSize;
+    private final Cache<String, Film> cache;
+    private final RequestMemo memo;
+    private final PropagationService propagations;
 
     //Instancias
     @Autowired
-    public FilmService(FilmRepository films, MongoTemplate mongo, PatchMethod patchMethod) {
+    public FilmService(FilmRepository films, MongoTemplate mongo, PatchMethod patchMethod, PageMethod pageMethod,
+                       CountCache counts, FilmTermIndex index, @Value("${films.index.max-ids:1000}") int maxIds,
+                       @Value("${films.cache.max-weight:100000}") long maxWeight, MeterRegistry registry,
+                       RequestMemo memo, PropagationService propagations,
+                       @Value("${pagination.max-size:100}") int maxSize) {
         this.films = films;
         this.mongo = mongo;
         this.patchMethod = patchMethod;
+        this.pageMethod = pageMethod;
+        this.counts = counts;
+        this.index = index;
+        this.maxIds = maxIds;
+        this.maxSize = maxSize;
+        this.memo = memo;
+        this.propagations = propagations;
+        //caché de detalles de películas, limitada por el tamaño aproximado de cada una
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String id, Film film) -> weight(film))
+                .recordStats()
+                .build();
+        //publicamos los aciertos, fallos y expulsiones de la caché
+        CaffeineCacheMetrics.monitor(registry, cache, "films");
     }
 
     //devuelve la película con el id correspondiente
     public Optional<Film> get(String id) {
-        return films.findById(id);
+        //solo se guardan en la caché las películas que existen; dentro de una petición se consulta una sola vez
+        return memo.get(Film.class, id, () -> Optional.ofNullable(cache.get(id, key -> films.findById(key).orElse(null))));
     }
 
     //devuelve la lista de películas paginadas
-    public Optional<Page<Film>> get(int page, int size, Sort sort, List<String> keywords, List<String> genres,
-                                    List<String> producers, List<String> crew, List<String> cast, Date releasedate) {
+    public Optional<Page<FilmSummary>> get(int page, int size, Sort sort, List<String> keywords, List<String> genres,
+                                           List<String> producers, List<String> crew, List<String> cast, Date releasedate) {
         Pageable request = PageRequest.of(page, size, sort);
+        //si no hay que ordenar ni filtrar por fecha, la página sale directamente del índice; si no, se usan
+        //los ids del índice como filtro, si no son demasiados
+        boolean direct = sort.isUnsorted() && !filtersDate(releasedate);
+        //resolvemos los filtros sobre arrays con el índice invertido, si está disponible
+        Optional<FilmTermIndex.Match> matches = direct
+                ? index.match(keywords, genres, producers, crew, cast, request.getOffset(), request.getPageSize())
+                : index.match(keywords, genres, producers, crew, cast, 0, maxIds);
+        if (matches.isPresent() && matches.get().getCount() == 0) {
+            return Optional.empty();
+        }
+        if (matches.isPresent() && direct) {
+            Page<FilmSummary> result = page(matches.get(), request, keywords, genres, producers, crew, cast);
+            return result.isEmpty() ? Optional.empty() : Optional.of(result);
+        }
+        //mostramos aquellas películas que cumplen los filtros
+        Criteria criteria = filter(matches, keywords, genres, producers, crew, cast, releasedate);
+        //solo recuperamos de la base de datos los campos que se muestran en el listado
+        Page<FilmSummary> result = pageMethod.page(criteria, request, FilmSummary.class, FilmSummary.FIELDS);
+
+        if (result.isEmpty())
+            return Optional.empty();
+        else
+            return Optional.of(result);
+    }
+
+    //devuelve la lista de películas paginadas por cursor: la página siguiente empieza justo después
+    //del último elemento devuelto, por lo que su coste no depende de lo profunda que sea la página
+    public Optional<CursorSlice<FilmSummary>> get(String cursor, int size, Sort sort, List<String> keywords, List<String> genres,
+                                                  List<String> producers, List<String> crew, List<String> cast, Date releasedate) {
+        //limitamos el número de películas que se cargan en memoria en cada petición
+        size = PageMethod.size(size, maxSize);
+        //ordenamos siempre por _id al final, para que el cursor identifique un único documento
+        Sort order = KeysetCursor.order(sort);
+        Optional<FilmTermIndex.Match> matches = index.match(keywords, genres, producers, crew, cast, 0, maxIds);
+        if (matches.isPresent() && matches.get().getCount() == 0) {
+            return Optional.empty();
+        }
+        Criteria criteria = filter(matches, keywords, genres, producers, crew, cast, releasedate);
+        //si se pasa un cursor, solo buscamos a partir de él
+        if (cursor != null && !cursor.isEmpty()) {
+            criteria.andOperator(KeysetCursor.decode(cursor, order).criteria(order));
+        }
+        //pedimos un elemento de más para saber si hay página siguiente
+        Query query = Query.query(criteria).with(order).limit(size + 1);
+        //recuperamos los campos del listado y los de ordenación, necesarios para construir el cursor
+        query.fields().include(FilmSummary.FIELDS);
+        for (String field : KeysetCursor.fields(order)) {
+            query.fields().include(field);
+        }
+        List<Document> documents = mongo.find(query, Document.class, mongo.getCollectionName(Film.class));
+
+        if (documents.isEmpty())
+            return Optional.empty();
+
+        String next = null;
+        if (documents.size() > size) {
+            documents = documents.subList(0, size);
+            next = KeysetCursor.after(documents.get(size - 1), order).encode();
+        }
+        List<FilmSummary> result = new ArrayList<>();
+        for (Document d : documents) {
+            result.add(mongo.getConverter().read(FilmSummary.class, d));
+        }
+        return Optional.of(new CursorSlice<>(result, PageRequest.of(0, size, order), next));
+    }
+
+    //construye la página de películas a partir de los ids del índice, pidiendo a la base de datos únicamente
+    //las películas de la página; los filtros se vuelven a aplicar, por si el índice no refleja todavía una
+    //modificación hecha en otra instancia
+    private Page<FilmSummary> page(FilmTermIndex.Match matches, Pageable request, List<String> keywords,
+                                   List<String> genres, List<String> producers, List<String> crew, List<String> cast) {
+        List<String> ids = matches.getIds();
+        Query query = Query.query(filter(Criteria.where("_id").in(ids), keywords, genres, producers, crew, cast, null));
+        query.fields().include(FilmSummary.FIELDS);
+        Map<String, FilmSummary> found = new HashMap<>();
+        for (FilmSummary f : mongo.find(query, FilmSummary.class)) {
+            found.put(f.getId(), f);
+        }
+        //mantenemos el orden del índice
+        List<FilmSummary> result = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            if (found.containsKey(id)) {
+                result.add(found.get(id));
+            } else {
+                missing.add(id);
+            }
+        }
+        forget(missing);
+        return new CountedPage<>(result, request, matches.getCount(), true);
+    }
+
+    //saca del índice las películas que ya no existen, porque se han eliminado en otra instancia
+    private void forget(List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        Query query = Query.query(Criteria.where("_id").in(ids));
+        query.fields().include("_id");
+        Set<String> existing = mongo.find(query, Film.class).stream().map(Film::getId).collect(Collectors.toSet());
+        ids.stream().filter(id -> !existing.contains(id)).forEach(index::remove);
+    }
+
+    //comprueba si se filtra por algún campo de la fecha de estreno
+    private static boolean filtersDate(Date releasedate) {
+        return releasedate != null &&
+                (releasedate.getDay() != null || releasedate.getMonth() != null || releasedate.getYear() != null);
+    }
+
+    //construye el criterio de búsqueda de películas con los filtros indicados; si el índice invertido ya ha
+    //resuelto los filtros sobre arrays y hay pocas películas, la búsqueda se limita a sus _id, manteniendo los
+    //filtros por si el índice no refleja todavía una modificación hecha en otra instancia
+    private Criteria filter(Optional<FilmTermIndex.Match> matches, List<String> keywords, List<String> genres,
+                            List<String> producers, List<String> crew, List<String> cast, Date releasedate) {
+        if (matches.isPresent() && matches.get().getCount() <= maxIds) {
+            //convertimos los ids igual que hace spring, para que valga también en las consultas sin mapeo
+            List<Object> ids = new ArrayList<>();
+            for (String id : matches.get().getIds()) {
+                ids.add(ObjectId.isValid(id) ? new ObjectId(id) : id);
+            }
+            Criteria criteria = Criteria.where("_id").in(ids);
+            return filter(criteria, keywords, genres, producers, crew, cast, releasedate);
+        }
         //mostramos aquellas películas con id
-        Criteria criteria = Criteria.where("_id").exists(true);
+        return filter(Criteria.where("_id").exists(true), keywords, genres, producers, crew, cast, releasedate);
+    }
+
+    //añade al criterio los filtros indicados
+    private static Criteria filter(Criteria criteria, List<String> keywords, List<String> genres, List<String> producers,
+                                   List<String> crew, List<String> cast, Date releasedate) {
         //si se pasa filtro, se añade a criteria
         if (keywords != null) {
             criteria.and("keywords").all(keywords);
@@ -68,45 +254,185 @@ public class FilmService {
                 criteria.and("releaseDate.year").is(releasedate.getYear());
             }
         }
-        //completamos la query
-        Query query = Query.query(criteria).with(request);
-        //buscamos con los filtros, indicando la clase Film, que es lo que busca
-        List<Film> result = mongo.find(query, Film.class);
-
-        //solo mostraremos los campos deseados
-        for (Film f : result) {
-            f.setTagline(null).setCollection(null).setKeywords(null).setProducers(null).setCrew(null)
-                    .setCast(null).setBudget(null).setStatus(null).setRuntime(null).setRevenue(null);
-        }
-
-        if (result.isEmpty())
-            return Optional.empty();
-        else
-            return Optional.of(PageableExecutionUtils.getPage(result, request,
-                    () -> mongo.count(Query.query(criteria), Film.class)));
+        return criteria;
     }
 
     //inserta la película
     public Film insert(Film film) {
-        return films.insert(film);
+        //las películas nuevas empiezan en la versión 0 y sin valoraciones
+        film = films.insert(film.setVersion(0L).setModified(System.currentTimeMillis())
+                .setRating(new Rating(0L, 0L, null, new HashMap<>())));
+        memo.evict(Film.class, film.getId());
+        index.update(film);
+        //los totales guardados ya no son válidos
+        counts.invalidate(Film.class);
+        return film;
     }
 
-    //modifica la película
-    public Film patch(String id, List<Map<String, Object>> updates) throws JsonPatchException {
-        //si la película está presente
-        if (this.get(id).isPresent()) {
-            //obtenemos la película de la base de datos
-            Film film = this.get(id).get();
-            //actualizamos los datos con el patch
-            film = patchMethod.patch(film, updates);
-            //actualizamos en la base de datos
-            return films.save(film);
+    //modifica la película; si se indica la versión, solo se modifica si la película sigue en ella
+    public Film patch(String id, Long version, List<Map<String, Object>> updates) throws JsonPatchException {
+        //aplicamos el patch con una única actualización si es posible, o en memoria comprobando la versión leída
+        Optional<Film> updated = patchMethod.patch(Film.class, id, version, updates,
+                film -> film.setModified(System.currentTimeMillis()));
+        if (updated.isPresent()) {
+            Film film = updated.get();
+            cache.invalidate(id);
+            memo.evict(Film.class, id);
+            index.update(film);
+            //la película puede haber pasado a cumplir otros filtros
+            counts.invalidate(Film.class);
+            //el título también está copiado en las valoraciones
+            if (PropagationService.touches(updates, "/title")) {
+                propagations.changed(PropagationService.FILM, id);
+            }
+            return film;
         }
         return null;
     }
 
+    //actualiza las valoraciones acumuladas de la película, quitando una valoración y añadiendo otra (cualquiera
+    //de las dos puede ser null)
+    public void rate(String id, Integer removed, Integer added) {
+        if (Objects.equals(removed, added)) {
+            return;
+        }
+        Map<Integer, Long> changes = new HashMap<>();
+        if (removed != null) {
+            changes.merge(removed, -1L, Long::sum);
+        }
+        if (added != null) {
+            changes.merge(added, 1L, Long::sum);
+        }
+        rate(id, changes);
+    }
+
+    //actualiza las valoraciones acumuladas de la película, indicando para cada valor cuántas valoraciones se
+    //añaden (o se quitan, si es negativo); los contadores se modifican con $inc, por lo que no se pierden
+    //valoraciones concurrentes, y la versión aumenta porque cambia la representación de la película
+    public void rate(String id, Map<Integer, Long> changes) {
+        rate(id, changes, null);
+    }
+
+    //igual que el anterior, pero los cambios con la misma etiqueta solo se aplican una vez a cada película, para
+    //poder repetirlos sin contarlos dos veces si se interrumpe quien los aplica: la etiqueta se guarda en la
+    //película con la misma actualización, y se quita con unmark cuando ya no se van a repetir
+    public void rate(String id, Map<Integer, Long> changes, String tag) {
+        if (id == null || changes.isEmpty()) {
+            return;
+        }
+        Update update = new Update().inc("version", 1);
+        long count = 0, sum = 0;
+        for (Map.Entry<Integer, Long> change : changes.entrySet()) {
+            if (change.getKey() == null || change.getValue() == 0) {
+                continue;
+            }
+            count += change.getValue();
+            sum += change.getKey() * change.getValue();
+            update.inc("rating.histogram." + change.getKey(), change.getValue());
+        }
+        if (count != 0) {
+            update.inc("rating.count", count);
+        }
+        if (sum != 0) {
+            update.inc("rating.sum", sum);
+        }
+        Criteria criteria = Criteria.where("_id").is(id);
+        if (tag != null) {
+            criteria.and(TAGS).ne(tag);
+            update.addToSet(TAGS, tag);
+        }
+        Film film = mongo.findAndModify(Query.query(criteria), update,
+                FindAndModifyOptions.options().returnNew(true), Film.class);
+        Rating rating = film == null ? null : film.getRating();
+        if (rating != null && rating.getCount() != null && rating.getSum() != null) {
+            //la media se guarda para poder ordenar por ella con un índice; solo se escribe si los contadores
+            //no han cambiado entretanto, pues en ese caso la escribirá la otra actualización
+            Update average = new Update().inc("version", 1);
+            if (rating.getCount() > 0) {
+                average.set("rating.average", (double) rating.getSum() / rating.getCount());
+            } else {
+                average.unset("rating.average");
+            }
+            mongo.updateFirst(Query.query(Criteria.where("_id").is(id)
+                    .and("rating.count").is(rating.getCount())
+                    .and("rating.sum").is(rating.getSum())), average, Film.class);
+        }
+        cache.invalidate(id);
+        memo.evict(Film.class, id);
+    }
+
+    //quita de las películas la etiqueta de unos cambios que ya no se van a repetir
+    public void unmark(Collection<String> ids, String tag) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        mongo.updateMulti(Query.query(Criteria.where("_id").in(ids)), new Update().pull(TAGS, tag), Film.class);
+    }
+
+    //calcula al arrancar las valoraciones acumuladas de las películas que todavía no las tienen, con una única
+    //agregación sobre las valoraciones; después se mantienen con rate
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillRatings() {
+        Query missing = Query.query(Criteria.where("rating").exists(false));
+        if (!mongo.exists(missing, Film.class)) {
+            return;
+        }
+        Map<String, Rating> ratings = new HashMap<>();
+        List<Document> pipeline = Collections.singletonList(new Document("$group", new Document("_id",
+                new Document("film", "$film._id").append("rating", "$rating")).append("count", new Document("$sum", 1L))));
+        for (Document group : mongo.getCollection(mongo.getCollectionName(Assessment.class)).aggregate(pipeline)) {
+            Document key = group.get("_id", Document.class);
+            if (key.get("film") == null || !(key.get("rating") instanceof Number)) {
+                continue;
+            }
+            int value = ((Number) key.get("rating")).intValue();
+            long count = ((Number) group.get("count")).longValue();
+            Rating rating = ratings.computeIfAbsent(key.get("film").toString(),
+                    film -> new Rating(0L, 0L, null, new HashMap<>()));
+            rating.setCount(rating.getCount() + count).setSum(rating.getSum() + count * value);
+            rating.getHistogram().merge(String.valueOf(value), count, Long::sum);
+        }
+
+        missing.fields().include("_id");
+        MongoCollection<Document> collection = mongo.getCollection(mongo.getCollectionName(Film.class));
+        try (CloseableIterator<Document> films = mongo.stream(missing, Document.class, mongo.getCollectionName(Film.class))) {
+            while (films.hasNext()) {
+                Object id = films.next().get("_id");
+                Rating rating = ratings.getOrDefault(id.toString(), new Rating(0L, 0L, null, new HashMap<>()));
+                if (rating.getCount() > 0) {
+                    rating.setAverage((double) rating.getSum() / rating.getCount());
+                }
+                Document value = new Document("count", rating.getCount()).append("sum", rating.getSum())
+                        .append("histogram", new Document(new HashMap<>(rating.getHistogram())));
+                if (rating.getAverage() != null) {
+                    value.append("average", rating.getAverage());
+                }
+                //si entretanto se ha valorado la película, ya tiene sus valoraciones y no las sobrescribimos
+                collection.updateOne(Filters.and(Filters.eq("_id", id), Filters.exists("rating", false)),
+                        Updates.set("rating", value));
+            }
+        }
+        log.info("Ratings computed for films without them");
+    }
+
     //elimina la película con el id correspondiente
     public void delete(String id) {
         films.deleteById(id);
+        cache.invalidate(id);
+        memo.evict(Film.class, id);
+        index.remove(id);
+        counts.invalidate(Film.class);
+    }
+
+    //peso aproximado de una película en la caché, según el número de elementos de sus listas
+    private static int weight(Film film) {
+        int weight = 1;
+        for (List<?> list : Arrays.asList(film.getGenres(), film.getKeywords(), film.getProducers(), film.getCrew(),
+                film.getCast(), film.getResources())) {
+            if (list != null) {
+                weight += list.size();
+            }
+        }
+        return weight;
     }
 }
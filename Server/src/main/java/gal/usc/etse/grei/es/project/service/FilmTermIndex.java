@@ -0,0 +1,325 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Cast;
+import gal.usc.etse.grei.es.project.model.Crew;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.Producer;
+import org.bson.Document;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+//índice invertido en memoria de los campos por los que se filtran las películas: cada término se codifica
+//con un entero en un diccionario por campo, y apunta a un bitmap comprimido con los ordinales de las películas
+//que lo contienen, de forma que un filtro con varios $all se resuelve intersecando bitmaps. Las películas
+//insertadas o modificadas en otras instancias se leen periódicamente por su instante de modificación; las
+//eliminadas se descartan cuando una búsqueda no las encuentra
+@Service
+public class FilmTermIndex {
+    private static final Logger log = LoggerFactory.getLogger(FilmTermIndex.class);
+    //campos indexados, en el orden en el que se pasan los filtros
+    private static final String[] FIELDS = {"keywords", "genres", "producers.name", "crew.name", "cast.name"};
+    //instante de la última modificación de cada película
+    private static final String MODIFIED = "modified";
+
+    private final MongoTemplate mongo;
+    private final boolean enabled;
+    //intervalo, en milisegundos, entre dos lecturas de las películas modificadas
+    private final long refresh;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "film-terms");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //ordinales de las películas
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    //ordinales de películas eliminadas, que se reutilizan para las siguientes que se añadan
+    private final RoaringBitmap free = new RoaringBitmap();
+    //diccionario de términos y bitmap de cada término, por campo
+    private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+    private final List<List<RoaringBitmap>> postings = new ArrayList<>();
+    //términos de cada película, para poder sacarla del índice al modificarla o eliminarla
+    private final Map<Integer, int[][]> terms = new HashMap<>();
+    private volatile boolean ready = false;
+    //instante de modificación más reciente leído de la base de datos
+    private long polled = 0;
+
+    //Instancias
+    @Autowired
+    public FilmTermIndex(MongoTemplate mongo, @Value("${films.index.enabled:true}") boolean enabled,
+                         @Value("${films.index.refresh:5000}") long refresh) {
+        this.mongo = mongo;
+        this.enabled = enabled;
+        this.refresh = refresh;
+        for (int i = 0; i < FIELDS.length; i++) {
+            dictionaries.add(new HashMap<>());
+            postings.add(new ArrayList<>());
+        }
+    }
+
+    //carga el índice al arrancar, leyendo solo los campos indexados de cada película, y programa las lecturas
+    //periódicas de las modificadas
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        int loaded = poll(new Query());
+        ready = true;
+        log.info("Film term index loaded with {} films", loaded);
+        scheduler.scheduleWithFixedDelay(this::refresh, refresh, refresh, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //lee las películas insertadas o modificadas desde la última lectura, también en otras instancias
+    public void refresh() {
+        //un fallo no puede detener las lecturas siguientes
+        try {
+            //se vuelven a leer las de los últimos segundos, por si se guardaron con el reloj algo retrasado
+            poll(Query.query(Criteria.where(MODIFIED).gt(polled - 5000)));
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh the film term index", e);
+        }
+    }
+
+    //añade al índice las películas de la consulta; devuelve cuántas ha leído
+    private int poll(Query query) {
+        query.fields().include(FIELDS).include(MODIFIED);
+        int count = 0;
+        try (CloseableIterator<Document> films = mongo.stream(query, Document.class, mongo.getCollectionName(Film.class))) {
+            while (films.hasNext()) {
+                Document film = films.next();
+                List<List<String>> values = new ArrayList<>();
+                for (String field : FIELDS) {
+                    values.add(values(film, field));
+                }
+                lock.writeLock().lock();
+                try {
+                    add(film.get("_id").toString(), values);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                Object modified = film.get(MODIFIED);
+                if (modified instanceof Number) {
+                    polled = Math.max(polled, ((Number) modified).longValue());
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //actualiza los términos de una película insertada o modificada
+    public void update(Film film) {
+        if (!enabled || film == null) {
+            return;
+        }
+        List<List<String>> values = Arrays.asList(
+                film.getKeywords(),
+                film.getGenres(),
+                film.getProducers() == null ? null : film.getProducers().stream().map(Producer::getName).collect(Collectors.toList()),
+                film.getCrew() == null ? null : film.getCrew().stream().map(Crew::getName).collect(Collectors.toList()),
+                film.getCast() == null ? null : film.getCast().stream().map(Cast::getName).collect(Collectors.toList())
+        );
+        lock.writeLock().lock();
+        try {
+            add(film.getId(), values);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //saca una película del índice
+    public void remove(String id) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            release(ordinals.remove(id));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //devuelve cuántas películas contienen todos los términos indicados y los ids de las que ocupan las posiciones
+    //pedidas, o nada si no se filtra por ningún campo indexado o el índice no está disponible. Los ids se leen con
+    //el mismo bloqueo que los bitmaps, porque el ordinal de una película eliminada se reutiliza para otra
+    public Optional<Match> match(List<String> keywords, List<String> genres, List<String> producers,
+                                 List<String> crew, List<String> cast, long offset, int limit) {
+        List<List<String>> filters = Arrays.asList(keywords, genres, producers, crew, cast);
+        if (!ready || filters.stream().allMatch(Objects::isNull)) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            List<RoaringBitmap> bitmaps = new ArrayList<>();
+            for (int i = 0; i < FIELDS.length; i++) {
+                if (filters.get(i) == null) {
+                    continue;
+                }
+                for (String term : filters.get(i)) {
+                    Integer code = dictionaries.get(i).get(term);
+                    //si algún término no aparece en ninguna película, no hay resultados
+                    if (code == null) {
+                        return Optional.of(new Match(0, Collections.emptyList()));
+                    }
+                    bitmaps.add(postings.get(i).get(code));
+                }
+            }
+            //si todas las listas de filtros están vacías, el filtro se resuelve en la base de datos
+            if (bitmaps.isEmpty()) {
+                return Optional.empty();
+            }
+            //intersecamos empezando por los bitmaps más pequeños
+            bitmaps.sort(Comparator.comparingInt(RoaringBitmap::getCardinality));
+            RoaringBitmap result = bitmaps.get(0).clone();
+            for (int i = 1; i < bitmaps.size() && !result.isEmpty(); i++) {
+                result.and(bitmaps.get(i));
+            }
+            return Optional.of(new Match(result.getLongCardinality(), ids(result, offset, limit)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //ids de las películas del bitmap, empezando en la posición indicada; se llama con el bloqueo de lectura
+    private List<String> ids(RoaringBitmap films, long offset, int limit) {
+        List<String> result = new ArrayList<>();
+        if (offset >= films.getLongCardinality()) {
+            return result;
+        }
+        PeekableIntIterator iterator = films.getIntIterator();
+        iterator.advanceIfNeeded(films.select((int) offset));
+        while (iterator.hasNext() && result.size() < limit) {
+            String id = ids.get(iterator.next());
+            if (id != null) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    //añade una película: si ya estaba, conserva su ordinal y se sacan antes del índice sus términos anteriores;
+    //si no, ocupa el hueco de una película eliminada o, si no hay ninguno, un ordinal nuevo, de forma que la lista
+    //de ids no crece al modificar ni al volver a indexar películas
+    private void add(String id, List<List<String>> values) {
+        Integer existing = ordinals.get(id);
+        int ordinal;
+        if (existing != null) {
+            ordinal = existing;
+            clear(ordinal);
+        } else if (!free.isEmpty()) {
+            ordinal = free.first();
+            free.remove(ordinal);
+            ids.set(ordinal, id);
+        } else {
+            ordinal = ids.size();
+            ids.add(id);
+        }
+        ordinals.put(id, ordinal);
+        int[][] codes = new int[FIELDS.length][];
+        for (int i = 0; i < FIELDS.length; i++) {
+            Set<String> distinct = values.get(i) == null ? Collections.emptySet() : new HashSet<>(values.get(i));
+            distinct.remove(null);
+            codes[i] = new int[distinct.size()];
+            int j = 0;
+            for (String term : distinct) {
+                Map<String, Integer> dictionary = dictionaries.get(i);
+                Integer code = dictionary.get(term);
+                if (code == null) {
+                    code = postings.get(i).size();
+                    dictionary.put(term, code);
+                    postings.get(i).add(new RoaringBitmap());
+                }
+                postings.get(i).get(code).add(ordinal);
+                codes[i][j++] = code;
+            }
+        }
+        terms.put(ordinal, codes);
+    }
+
+    //libera el ordinal de una película eliminada: se quita de los bitmaps y su hueco queda libre para otra
+    private void release(Integer ordinal) {
+        if (ordinal == null) {
+            return;
+        }
+        clear(ordinal);
+        ids.set(ordinal, null);
+        free.add(ordinal);
+    }
+
+    //quita la película de los bitmaps de sus términos
+    private void clear(int ordinal) {
+        int[][] codes = terms.remove(ordinal);
+        if (codes != null) {
+            for (int i = 0; i < FIELDS.length; i++) {
+                for (int code : codes[i]) {
+                    postings.get(i).get(code).remove(ordinal);
+                }
+            }
+        }
+    }
+
+    //valores de un campo de tipo array, o de un campo de los objetos de un array
+    private static List<String> values(Document film, String field) {
+        String[] path = field.split("\\.");
+        Object value = film.get(path[0]);
+        if (!(value instanceof List)) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (Object item : (List<?>) value) {
+            Object term = path.length > 1 && item instanceof Document ? ((Document) item).get(path[1]) : item;
+            if (term instanceof String) {
+                result.add((String) term);
+            }
+        }
+        return result;
+    }
+
+    //películas que cumplen un filtro: cuántas son, y los ids de las posiciones pedidas en el orden del índice
+    public static class Match {
+        private final long count;
+        private final List<String> ids;
+
+        private Match(long count, List<String> ids) {
+            this.count = count;
+            this.ids = ids;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public List<String> getIds() {
+            return ids;
+        }
+    }
+}
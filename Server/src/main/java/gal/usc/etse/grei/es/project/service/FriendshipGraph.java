@@ -0,0 +1,480 @@
+package gal.usc.etse.grei.es.project.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.FriendshipChange;
+import gal.usc.etse.grei.es.project.model.Suggestion;
+import org.bson.Document;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+//grafo de amistades en memoria: cada usuario se codifica con un entero, y tiene un bitmap comprimido con los
+//usuarios con los que tiene una amistad (pendiente o aceptada) y otro solo con las aceptadas, de forma que las
+//sugerencias se calculan intersecando bitmaps, y los amigos en común intersecando arrays ordenados. Cada cambio se guarda también en la colección
+//friendchanges, y cada instancia lee periódicamente, en un hilo propio, los de las demás: el grafo va como mucho
+//un intervalo de lectura por detrás de las amistades creadas o eliminadas en otras instancias
+@Service
+public class FriendshipGraph {
+    private static final Logger log = LoggerFactory.getLogger(FriendshipGraph.class);
+    //candidatos a partir de los cuales las sugerencias se calculan en paralelo
+    private static final int PARALLEL = 10000;
+
+    private final MongoTemplate mongo;
+    private final int maxSuggestions;
+    //sugerencias de cada usuario, que se descartan cuando cambian las amistades de las que dependen
+    private final Cache<String, List<Suggestion>> suggestions;
+    //amigos en común de cada pareja de usuarios consultada, para no volver a calcularlos en cada página
+    private final Cache<Long, Mutual> mutuals;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //tiempo que se guardan los cambios: una instancia que lleve más sin leerlos vuelve a cargar el grafo entero
+    private final long retention;
+    //intervalo, en milisegundos, entre dos lecturas de los cambios hechos en otras instancias
+    private final long refresh;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "friendship-graph");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //ordinales de los usuarios
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<String> users = new ArrayList<>();
+    //amistades de cada usuario, en cualquier estado y solo las aceptadas
+    private final List<RoaringBitmap> friends = new ArrayList<>();
+    private final List<RoaringBitmap> confirmed = new ArrayList<>();
+    //amistades aceptadas de cada usuario como array ordenado de ordinales; se calcula al pedir sus amigos en
+    //común, y se descarta cuando cambian. Las lecturas lo calculan con el bloqueo de lectura, así que se guarda
+    //en un mapa concurrente
+    private final Map<Integer, int[]> adjacency = new ConcurrentHashMap<>();
+    private volatile boolean ready = false;
+    //instante del cambio más reciente leído, y de la última lectura completada
+    private volatile long polled = 0;
+    private volatile long read = 0;
+
+    //Instancias
+    @Autowired
+    public FriendshipGraph(MongoTemplate mongo, @Value("${friends.suggestions.max-size:100}") int maxSuggestions,
+                           @Value("${friends.suggestions.cache-size:10000}") long cacheSize,
+                           @Value("${friends.mutual.cache-size:10000}") long mutualCacheSize,
+                           @Value("${friends.changes.retention:1d}") Duration retention,
+                           @Value("${friends.changes.refresh:5000}") long refresh) {
+        this.mongo = mongo;
+        this.maxSuggestions = maxSuggestions;
+        this.suggestions = Caffeine.newBuilder().maximumSize(cacheSize).build();
+        this.mutuals = Caffeine.newBuilder().maximumSize(mutualCacheSize).build();
+        this.retention = retention.toMillis();
+        this.refresh = refresh;
+    }
+
+    //carga el grafo al arrancar, y programa las lecturas periódicas de los cambios
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        reload();
+        scheduler.scheduleWithFixedDelay(this::refresh, refresh, refresh, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //lee los cambios hechos en otras instancias y los aplica en el orden en el que se hicieron
+    public void refresh() {
+        //un fallo no puede detener las lecturas siguientes
+        try {
+            long now = System.currentTimeMillis();
+            //si se han podido eliminar cambios que no se han leído, no basta con leer los que quedan
+            if (now - read > retention / 2) {
+                log.warn("Friendship changes were not read for {} ms, reloading the graph", now - read);
+                reload();
+                return;
+            }
+            //se vuelven a leer los de los últimos segundos, por si se guardaron con el reloj algo retrasado;
+            //aplicar otra vez los cambios en orden deja el mismo resultado
+            Query query = Query.query(Criteria.where("created").gt(polled - 5000)).with(Sort.by("created", "_id"));
+            for (FriendshipChange change : mongo.find(query, FriendshipChange.class)) {
+                if (change.getFriend() == null) {
+                    clear(change.getUser());
+                } else {
+                    change(change.getUser(), change.getFriend(), Boolean.TRUE.equals(change.getConfirmed()));
+                }
+                polled = Math.max(polled, change.getCreated());
+            }
+            read = now;
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh the friendship graph", e);
+        }
+    }
+
+    //añade o actualiza una amistad, y lo anota para las demás instancias
+    public void update(Friendship friendship) {
+        if (friendship == null) {
+            return;
+        }
+        record(friendship.getUser(), friendship.getFriend(), friendship.getConfirmed());
+        change(friendship.getUser(), friendship.getFriend(), Boolean.TRUE.equals(friendship.getConfirmed()));
+    }
+
+    //elimina todas las amistades de un usuario, y lo anota para las demás instancias
+    public void remove(String user) {
+        record(user, null, null);
+        clear(user);
+    }
+
+    //comprueba si dos usuarios tienen una amistad, pendiente o aceptada, o nada si el grafo todavía no está
+    //disponible
+    public Optional<Boolean> areFriends(String user, String friend) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            Integer a = ordinals.get(user);
+            Integer b = ordinals.get(friend);
+            return Optional.of(a != null && b != null && friends.get(a).contains(b));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //lee todas las amistades, solo los usuarios y el estado de cada una, y sustituye con ellas el grafo
+    private void reload() {
+        long start = System.currentTimeMillis();
+        Query query = new Query();
+        query.fields().include("user", "friend", "confirmed");
+        lock.writeLock().lock();
+        try (CloseableIterator<Document> friendships = mongo.stream(query, Document.class, mongo.getCollectionName(Friendship.class))) {
+            ordinals.clear();
+            users.clear();
+            friends.clear();
+            confirmed.clear();
+            adjacency.clear();
+            mutuals.invalidateAll();
+            int count = 0;
+            while (friendships.hasNext()) {
+                Document friendship = friendships.next();
+                add(friendship.getString("user"), friendship.getString("friend"),
+                        Boolean.TRUE.equals(friendship.getBoolean("confirmed")));
+                count++;
+            }
+            //los cambios hechos mientras se leía se aplican en la siguiente lectura
+            polled = start;
+            read = start;
+            ready = true;
+            log.info("Friendship graph loaded with {} users and {} friendships", ordinals.size(), count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        suggestions.invalidateAll();
+    }
+
+    //guarda el cambio para las demás instancias; si no se puede, la amistad ya está guardada, así que no se
+    //devuelve un error, y las demás instancias la verán al volver a cargar el grafo
+    private void record(String user, String friend, Boolean accepted) {
+        long now = System.currentTimeMillis();
+        try {
+            mongo.insert(new FriendshipChange(null, user, friend, accepted, now, new Date(now + retention)));
+        } catch (RuntimeException e) {
+            log.warn("Could not record friendship change of {}", user, e);
+        }
+    }
+
+    //aplica en el grafo una amistad nueva o modificada
+    private void change(String user, String friend, boolean accepted) {
+        Set<String> affected = new HashSet<>();
+        lock.writeLock().lock();
+        try {
+            //cambian las sugerencias de los dos usuarios y las de sus amigos, que los tienen como amigo común
+            affected(user, affected);
+            affected(friend, affected);
+            add(user, friend, accepted);
+            affected(user, affected);
+            affected(friend, affected);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        //se descartan fuera del bloqueo, pues el cálculo de las sugerencias lo necesita
+        suggestions.invalidateAll(affected);
+    }
+
+    //elimina del grafo todas las amistades de un usuario
+    private void clear(String user) {
+        Set<String> affected = new HashSet<>();
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.get(user);
+            if (ordinal == null) {
+                return;
+            }
+            //cambian las sugerencias del usuario, las de sus amigos y las de los amigos de estos, a los que se
+            //les sugería el usuario
+            affected(user, affected);
+            for (int friend : confirmed.get(ordinal)) {
+                affected(users.get(friend), affected);
+            }
+            adjacency.remove(ordinal);
+            for (int friend : friends.get(ordinal)) {
+                adjacency.remove(friend);
+                friends.get(friend).remove(ordinal);
+                confirmed.get(friend).remove(ordinal);
+            }
+            friends.get(ordinal).clear();
+            confirmed.get(ordinal).clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        suggestions.invalidateAll(affected);
+    }
+
+    //devuelve los amigos de un usuario, o nada si el grafo todavía no está disponible
+    public Optional<List<String>> friends(String user) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            Integer ordinal = ordinals.get(user);
+            if (ordinal != null) {
+                friends.get(ordinal).forEach((int friend) -> result.add(users.get(friend)));
+            }
+            return Optional.of(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //devuelve los amigos aceptados de un usuario, o nada si el grafo todavía no está disponible
+    public Optional<List<String>> confirmed(String user) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            Integer ordinal = ordinals.get(user);
+            if (ordinal != null) {
+                confirmed.get(ordinal).forEach((int friend) -> result.add(users.get(friend)));
+            }
+            return Optional.of(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //número de amigos aceptados de un usuario
+    public int degree(String user) {
+        lock.readLock().lock();
+        try {
+            Integer ordinal = ordinals.get(user);
+            return ordinal == null ? 0 : confirmed.get(ordinal).getCardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //devuelve una página de los amigos aceptados que tienen en común dos usuarios, con el total, o nada si el
+    //grafo todavía no está disponible. La intersección recorre el array del usuario con menos amigos y busca cada
+    //uno en el del otro avanzando a saltos (galloping), así que cuesta O(m log(n / m)) para m <= n amigos; se
+    //guarda para las páginas siguientes mientras no cambien los amigos de ninguno de los dos. Los amigos se
+    //devuelven en el orden de sus ordinales, que solo cambia al volver a cargar el grafo
+    public Optional<Page<String>> mutual(String user, String other, Pageable request) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        lock.readLock().lock();
+        try {
+            Integer a = ordinals.get(user);
+            Integer b = ordinals.get(other);
+            if (a == null || b == null) {
+                return Optional.of(new PageImpl<>(Collections.emptyList(), request, 0));
+            }
+            //la pareja se identifica con sus ordinales ordenados, para compartir el resultado en los dos sentidos
+            int low = Math.min(a, b), high = Math.max(a, b);
+            int[] left = adjacency(low);
+            int[] right = adjacency(high);
+            long key = ((long) low << 32) | high;
+            Mutual cached = mutuals.getIfPresent(key);
+            //los arrays se sustituyen al cambiar las amistades, así que si son los mismos el resultado sigue valiendo
+            int[] common;
+            if (cached != null && cached.left == left && cached.right == right) {
+                common = cached.common;
+            } else {
+                common = intersect(left, right);
+                mutuals.put(key, new Mutual(left, right, common));
+            }
+            List<String> content = new ArrayList<>();
+            for (long i = request.getOffset(); i < common.length && content.size() < request.getPageSize(); i++) {
+                content.add(users.get(common[(int) i]));
+            }
+            return Optional.of(new PageImpl<>(content, request, common.length));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //devuelve los usuarios sin amistad con el indicado que más amigos aceptados tienen en común con él, o nada si
+    //el grafo todavía no está disponible
+    public Optional<List<Suggestion>> suggestions(String user, int size) {
+        if (!ready) {
+            return Optional.empty();
+        }
+        List<Suggestion> result = suggestions.get(user, this::suggest);
+        return Optional.of(result.subList(0, Math.min(Math.max(size, 0), result.size())));
+    }
+
+    //calcula las sugerencias de un usuario: los candidatos son la unión de los bitmaps de sus amigos, y los
+    //amigos en común de cada uno la cardinalidad de la intersección con el bitmap del usuario
+    private List<Suggestion> suggest(String user) {
+        lock.readLock().lock();
+        try {
+            Integer ordinal = ordinals.get(user);
+            if (ordinal == null) {
+                return Collections.emptyList();
+            }
+            RoaringBitmap mine = confirmed.get(ordinal);
+            List<RoaringBitmap> theirs = new ArrayList<>();
+            mine.forEach((int friend) -> theirs.add(confirmed.get(friend)));
+            RoaringBitmap candidates = FastAggregation.or(theirs.iterator());
+            //descartamos al propio usuario y a quienes ya tienen amistad con él, aunque esté pendiente
+            candidates.andNot(friends.get(ordinal));
+            candidates.remove(ordinal);
+
+            IntStream stream = candidates.stream();
+            //con muchos candidatos repartimos las intersecciones entre los núcleos
+            if (candidates.getCardinality() >= PARALLEL) {
+                stream = stream.parallel();
+            }
+            return stream
+                    .mapToObj(candidate -> new Suggestion(users.get(candidate),
+                            RoaringBitmap.andCardinality(mine, confirmed.get(candidate))))
+                    .sorted(Comparator.comparing(Suggestion::getMutual).reversed().thenComparing(Suggestion::getUser))
+                    .limit(maxSuggestions)
+                    .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //amistades aceptadas del usuario como array ordenado, calculado a partir de su bitmap la primera vez
+    private int[] adjacency(int ordinal) {
+        return adjacency.computeIfAbsent(ordinal, key -> confirmed.get(key).toArray());
+    }
+
+    //intersección de dos arrays ordenados sin repetidos: cada elemento del menor se busca en el mayor a partir
+    //de la posición del anterior, primero a saltos que se duplican y después con una búsqueda binaria en el
+    //último salto
+    static int[] intersect(int[] a, int[] b) {
+        int[] small = a.length <= b.length ? a : b;
+        int[] large = a.length <= b.length ? b : a;
+        int[] result = new int[small.length];
+        int count = 0;
+        int position = 0;
+        for (int value : small) {
+            if (position >= large.length) {
+                break;
+            }
+            //saltamos hasta pasar el valor buscado o el final del array
+            int step = 1;
+            int low = position;
+            while (low + step < large.length && large[low + step] < value) {
+                low += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(large, low, Math.min(low + step + 1, large.length), value);
+            if (found >= 0) {
+                result[count++] = value;
+                position = found + 1;
+            } else {
+                position = -found - 1;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    //añade a los afectados por un cambio de amistades al usuario y a sus amigos aceptados
+    private void affected(String user, Set<String> affected) {
+        Integer ordinal = user == null ? null : ordinals.get(user);
+        if (ordinal == null) {
+            return;
+        }
+        affected.add(user);
+        confirmed.get(ordinal).forEach((int friend) -> affected.add(users.get(friend)));
+    }
+
+    //añade la amistad en los dos sentidos
+    private void add(String user, String friend, boolean accepted) {
+        if (user == null || friend == null) {
+            return;
+        }
+        int a = ordinal(user);
+        int b = ordinal(friend);
+        adjacency.remove(a);
+        adjacency.remove(b);
+        friends.get(a).add(b);
+        friends.get(b).add(a);
+        if (accepted) {
+            confirmed.get(a).add(b);
+            confirmed.get(b).add(a);
+        } else {
+            confirmed.get(a).remove(b);
+            confirmed.get(b).remove(a);
+        }
+    }
+
+    //los ordinales no se reutilizan hasta volver a cargar el grafo: un usuario eliminado conserva el suyo, sin
+    //amistades
+    private int ordinal(String user) {
+        Integer ordinal = ordinals.get(user);
+        if (ordinal == null) {
+            ordinal = users.size();
+            //guardamos una sola copia de cada email
+            users.add(user.intern());
+            ordinals.put(users.get(ordinal), ordinal);
+            friends.add(new RoaringBitmap());
+            confirmed.add(new RoaringBitmap());
+        }
+        return ordinal;
+    }
+
+    //amigos en común de una pareja, junto con los arrays de los que se calcularon
+    private static class Mutual {
+        private final int[] left;
+        private final int[] right;
+        private final int[] common;
+
+        private Mutual(int[] left, int[] right, int[] common) {
+            this.left = left;
+            this.right = right;
+            this.common = common;
+        }
+    }
+}
@@ -2,8 +2,16 @@ package gal.usc.etse.grei.es.project.service;
 
 import gal.usc.etse.grei.es.project.model.Date;
 import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.Suggestion;
 import gal.usc.etse.grei.es.project.repository.FriendshipRepository;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
@@ -11,29 +19,75 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.support.PageableExecutionUtils;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class FriendshipService {
+    private static final Logger log = LoggerFactory.getLogger(FriendshipService.class);
+    //orden de las amistades paginadas por cursor: los _id crecen con la fecha de creación
+    private static final Sort ORDER = Sort.by(Sort.Direction.ASC, "_id");
+
     private final FriendshipRepository friendships;
     private final MongoTemplate mongo;
+    private final RequestMemo memo;
+    private final FriendshipGraph graph;
+    private final int maxSize;
 
     //Instancias
     @Autowired
-    public FriendshipService(FriendshipRepository friendships, MongoTemplate mongo) {
+    public FriendshipService(FriendshipRepository friendships, MongoTemplate mongo, RequestMemo memo, FriendshipGraph graph,
+                             @Value("${pagination.max-size:100}") int maxSize) {
         this.friendships = friendships;
         this.mongo = mongo;
+        this.memo = memo;
+        this.graph = graph;
+        this.maxSize = maxSize;
+    }
+
+    //completa la clave de las amistades creadas antes de que existiera; si ya hay otra amistad entre los mismos
+    //usuarios, la pendiente sobra y se elimina
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillPairKeys() {
+        Query query = Query.query(Criteria.where("pairKey").exists(false));
+        query.fields().include("user", "friend", "confirmed");
+        int updated = 0, removed = 0;
+        for (Friendship friendship : mongo.find(query, Friendship.class)) {
+            String key = Friendship.pairKey(friendship.getUser(), friendship.getFriend());
+            if (key == null) {
+                continue;
+            }
+            try {
+                mongo.updateFirst(Query.query(Criteria.where("_id").is(friendship.getId())),
+                        Update.update("pairKey", key), Friendship.class);
+                updated++;
+            } catch (DuplicateKeyException e) {
+                if (Boolean.TRUE.equals(friendship.getConfirmed())) {
+                    log.warn("Friendship {} duplicates pair {} and is left without key", friendship.getId(), key);
+                } else {
+                    mongo.remove(Query.query(Criteria.where("_id").is(friendship.getId())), Friendship.class);
+                    removed++;
+                }
+            }
+        }
+        if (updated > 0 || removed > 0) {
+            log.info("Friendship pair keys: {} set, {} duplicates removed", updated, removed);
+        }
     }
 
     //devuelve la amistad con el id correspondiente
     public Optional<Friendship> get(String id) {
-        return friendships.findById(id);
+        //@PreAuthorize y el controlador piden varias veces la misma amistad en una petición
+        return memo.get(Friendship.class, id, () -> friendships.findById(id));
     }
 
     //devuelve todas las amistades
@@ -43,31 +97,60 @@ public class FriendshipService {
 
     //devuelve la lista de amigos
     public List<String> getAllFriends(String user) {
-        Criteria criteria = Criteria.where("_id").exists(true);
-        //indicamos que el usuario o friend debe ser user
-        criteria.and("user").is(user);
-        Query query = Query.query(criteria);
-        List<Friendship> result = mongo.find(query, Friendship.class);
-        criteria.and("friend").is(user);
-        query = Query.query(criteria);
-        //añadimos a continuación en los que se encuentre como friend
-        result.addAll(mongo.find(query, Friendship.class));
-        Criteria criteria1 = Criteria.where("_id").exists(true);
-        criteria1.and("friend").is(user);
-        query = Query.query(criteria1);
-        //añadimos a continuación en los que se encuentre como friend
-        result.addAll(mongo.find(query, Friendship.class));
-        List<String> friends = new ArrayList<>();
-        //añadimos todos los amigos obtenidos
-        for (Friendship f : result) {
-            if (user.equals(f.getUser())) {
-                friends.add(f.getFriend());
-            } else {
-                friends.add(f.getUser());
+        //se consultan en el grafo en memoria; mientras se carga, en la base de datos
+        return graph.friends(user).orElseGet(() -> {
+            List<String> friends = new ArrayList<>();
+            //amistades en las que se encuentra como user o como friend
+            for (Friendship f : mongo.find(Query.query(involving(user)), Friendship.class)) {
+                friends.add(user.equals(f.getUser()) ? f.getFriend() : f.getUser());
             }
+            return friends;
+        });
+    }
+
+    //devuelve las amistades del usuario paginadas por cursor: se leen por separado las que pidió y las que
+    //recibió, cada una con un rango sobre su índice, y se mezclan en orden de _id
+    public Optional<CursorSlice<Friendship>> getFriends(String cursor, int size, String user) {
+        size = PageMethod.size(size, maxSize);
+        List<Document> documents = Stream.concat(
+                find(Criteria.where("user").is(user), cursor, size + 1).stream(),
+                find(Criteria.where("friend").is(user), cursor, size + 1).stream()
+        ).sorted(Comparator.comparing(d -> d.getObjectId("_id"))).limit(size + 1).collect(Collectors.toList());
+        return slice(documents, size);
+    }
+
+    //devuelve las solicitudes de amistad pendientes que ha recibido el usuario, paginadas por cursor
+    public Optional<CursorSlice<Friendship>> getRequests(String cursor, int size, String user) {
+        size = PageMethod.size(size, maxSize);
+        List<Document> documents = find(Criteria.where("friend").is(user).and("confirmed").is(false), cursor, size + 1);
+        return slice(documents, size);
+    }
+
+    //amistades que cumplen el criterio a continuación del cursor, en orden de _id
+    private List<Document> find(Criteria criteria, String cursor, int limit) {
+        //si se pasa un cursor, solo buscamos a partir de él
+        if (cursor != null && !cursor.isEmpty()) {
+            criteria.andOperator(KeysetCursor.decode(cursor, ORDER).criteria(ORDER));
         }
+        Query query = Query.query(criteria).with(ORDER).limit(limit);
+        return mongo.find(query, Document.class, mongo.getCollectionName(Friendship.class));
+    }
+
+    //convierte los documentos leídos (uno de más si hay página siguiente) en una porción con su cursor
+    private Optional<CursorSlice<Friendship>> slice(List<Document> documents, int size) {
+        if (documents.isEmpty())
+            return Optional.empty();
 
-        return friends;
+        String next = null;
+        if (documents.size() > size) {
+            documents = documents.subList(0, size);
+            next = KeysetCursor.after(documents.get(size - 1), ORDER).encode();
+        }
+        List<Friendship> result = new ArrayList<>();
+        for (Document d : documents) {
+            result.add(mongo.getConverter().read(Friendship.class, d));
+        }
+        return Optional.of(new CursorSlice<>(result, PageRequest.of(0, size, ORDER), next));
     }
 
     //devuelve la lista de amigos
@@ -90,7 +173,10 @@ public class FriendshipService {
             //indicamos amistad aceptada y fecha actual
             friendship.setConfirmed(true).setSince(since);
             //actualizamos la amistad
-            return friendships.save(friendship);
+            friendship = friendships.save(friendship);
+            memo.evict(Friendship.class, id);
+            graph.update(friendship);
+            return friendship;
         }
         return null;
 
@@ -99,19 +185,55 @@ public class FriendshipService {
     //inserta la amistad entre usuarios
     public Friendship insert(String user, String friend) {
         //actualizamos los campos de usuario que crea la amistad y su amigo
-        Friendship friendship = new Friendship().setUser(user).setFriend(friend).setConfirmed(false);
-        //devolvemos el usuario
-        return friendships.insert(friendship);
+        Friendship friendship = new Friendship().setUser(user).setFriend(friend).setConfirmed(false)
+                .setPairKey(Friendship.pairKey(user, friend));
+        try {
+            friendship = friendships.insert(friendship);
+        } catch (DuplicateKeyException e) {
+            //el índice único sobre la clave impide crear dos amistades entre los mismos usuarios
+            return null;
+        }
+        memo.evict(Friendship.class, friendship.getId());
+        graph.update(friendship);
+        return friendship;
     }
 
     //elimina la valoración con el amigo correspondiente
     public void delete(String friend) {
         friendships.deleteAllByUserOrFriend(friend, friend);
+        //no sabemos qué amistades se han borrado
+        memo.evict(Friendship.class);
+        graph.remove(friend);
+    }
+
+    //devuelve una página de los amigos aceptados que tienen en común dos usuarios, o nada si el grafo de
+    //amistades todavía se está cargando
+    public Optional<Page<String>> getMutualFriends(int page, int size, String user, String other) {
+        Pageable request = PageRequest.of(Math.max(page, 0), PageMethod.size(size, maxSize));
+        return graph.mutual(user, other, request);
+    }
+
+    //devuelve los usuarios con más amigos en común que todavía no son amigos del usuario, o nada si el grafo de
+    //amistades todavía se está cargando
+    public Optional<List<Suggestion>> getSuggestions(String user, int size) {
+        return graph.suggestions(user, size);
+    }
+
+    //comprueba si existe una amistad entre dos usuarios, pendiente o aceptada, con una búsqueda en el índice único
+    public boolean exists(String user, String friend) {
+        return mongo.exists(Query.query(Criteria.where("pairKey").is(Friendship.pairKey(user, friend))), Friendship.class);
     }
 
     //comprueba si dos usuarios son amigos
     public Boolean areFriends(String user, String friend) {
-        //si está contenido en la lista, entonces son amigos
-        return this.getAllFriends(user).contains(friend);
+        //se ejecuta en @PreAuthorize en cada petición, así que se responde con el grafo en memoria, sin consultar
+        //la base de datos; una amistad eliminada en otra instancia sigue dando acceso, como mucho, hasta la
+        //siguiente lectura de los cambios. Mientras se carga, se busca en el índice único
+        return graph.areFriends(user, friend).orElseGet(() -> exists(user, friend));
+    }
+
+    //amistades en las que participa el usuario
+    private static Criteria involving(String user) {
+        return new Criteria().orOperator(Criteria.where("user").is(user), Criteria.where("friend").is(user));
     }
 }
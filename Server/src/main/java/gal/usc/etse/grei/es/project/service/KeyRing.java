@@ -0,0 +1,152 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.SigningKey;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.Key;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//claves de firmado de los tokens, guardadas en la colección keys para que todas las instancias firmen y verifiquen
+//con las mismas. Se firma siempre con la clave más reciente, que se sustituye periódicamente; las anteriores se
+//siguen aceptando durante un tiempo, para que los tokens ya emitidos sigan siendo válidos hasta caducar
+@Service
+public class KeyRing {
+    private static final Logger log = LoggerFactory.getLogger(KeyRing.class);
+    //tiempo mínimo entre dos recargas provocadas por tokens con claves desconocidas
+    private static final long RELOAD = 5000;
+
+    private final MongoTemplate mongo;
+    private final long rotation;
+    private final long retention;
+    private final long interval;
+    //las claves se leen en un hilo propio, y no en el planificador común, para que las tareas largas de este
+    //no retrasen la rotación
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "signing-keys");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile State state = new State(Collections.emptyMap(), null);
+    private volatile long loaded = 0;
+
+    //Instancias
+    @Autowired
+    public KeyRing(MongoTemplate mongo, @Value("${jwt.keys.rotation:24h}") Duration rotation,
+                   @Value("${jwt.keys.retention:2h}") Duration retention, @Value("${jwt.duration:60m}") Duration duration,
+                   @Value("${jwt.keys.refresh:60000}") long interval) {
+        //una clave retirada tiene que aceptarse mientras haya tokens firmados con ella sin caducar; si no, se
+        //rechazarían tokens válidos en cada rotación
+        if (retention.compareTo(duration) < 0) {
+            throw new IllegalStateException("jwt.keys.retention (" + retention + ") must not be shorter than jwt.duration ("
+                    + duration + ")");
+        }
+        this.mongo = mongo;
+        this.rotation = rotation.toMillis();
+        this.retention = retention.toMillis();
+        this.interval = interval;
+    }
+
+    //clave con la que se firman los tokens nuevos, junto con su identificador
+    public Map.Entry<String, Key> signing() {
+        State current = state;
+        return new AbstractMap.SimpleImmutableEntry<>(current.active, current.keys.get(current.active));
+    }
+
+    //clave con el identificador indicado, o null si no existe o ya no se acepta; si no se conoce, puede que otra
+    //instancia la acabe de crear, así que se vuelven a leer las claves
+    public Key get(String kid) {
+        if (kid == null) {
+            return null;
+        }
+        Key key = state.keys.get(kid);
+        if (key == null && System.currentTimeMillis() - loaded > RELOAD) {
+            refresh();
+            key = state.keys.get(kid);
+        }
+        return key;
+    }
+
+    //lee las claves al arrancar, y programa las lecturas periódicas
+    @PostConstruct
+    public void start() {
+        refresh();
+        scheduler.scheduleWithFixedDelay(() -> {
+            //un fallo no puede detener las lecturas siguientes
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                log.warn("Could not refresh signing keys", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //lee las claves, crea una nueva si la actual ha superado su tiempo de uso, y elimina las que ya no se aceptan
+    public synchronized void refresh() {
+        long now = System.currentTimeMillis();
+        List<SigningKey> stored = mongo.find(new Query().with(Sort.by(Sort.Direction.DESC, "created")), SigningKey.class);
+        if (stored.isEmpty() || stored.get(0).getCreated() <= now - rotation) {
+            create(now);
+            stored = mongo.find(new Query().with(Sort.by(Sort.Direction.DESC, "created")), SigningKey.class);
+        }
+
+        Map<String, Key> keys = new HashMap<>();
+        for (int i = 0; i < stored.size(); i++) {
+            SigningKey key = stored.get(i);
+            //cada clave deja de usarse al crearse la siguiente, y se acepta durante un tiempo después
+            if (i > 0 && stored.get(i - 1).getCreated() <= now - retention) {
+                mongo.remove(Query.query(Criteria.where("_id").is(key.getId())), SigningKey.class);
+                log.info("Signing key {} removed", key.getId());
+                continue;
+            }
+            keys.put(key.getId(), Keys.hmacShaKeyFor(Base64.getDecoder().decode(key.getSecret())));
+        }
+        state = new State(keys, stored.get(0).getId());
+        loaded = now;
+    }
+
+    //crea una clave nueva; su identificador depende del periodo de rotación, así que si varias instancias la
+    //crean a la vez solo se guarda la primera
+    private void create(long now) {
+        String id = Long.toString(now / rotation, 36);
+        byte[] secret = Keys.secretKeyFor(SignatureAlgorithm.HS512).getEncoded();
+        try {
+            mongo.insert(new SigningKey(id, Base64.getEncoder().encodeToString(secret), now));
+            log.info("Signing key {} created", id);
+        } catch (DuplicateKeyException e) {
+            //otra instancia la ha creado antes
+        }
+    }
+
+    //claves aceptadas y clave de firmado, que se sustituyen juntas
+    private static class State {
+        private final Map<String, Key> keys;
+        private final String active;
+
+        private State(Map<String, Key> keys, String active) {
+            this.keys = keys;
+            this.active = active;
+        }
+    }
+}
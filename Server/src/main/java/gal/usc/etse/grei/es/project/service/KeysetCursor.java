@@ -0,0 +1,129 @@
+package gal.usc.etse.grei.es.project.service;
+
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+//cursor opaco para la paginación por clave (keyset): guarda los valores de ordenación del último
+//elemento devuelto y su _id, de forma que la página siguiente se obtiene con un rango sobre el índice
+//en lugar de saltar (skip) todos los documentos anteriores
+public class KeysetCursor {
+    private static final String ID = "_id";
+
+    private final String sort;
+    private final List<Object> values;
+
+    private KeysetCursor(String sort, List<Object> values) {
+        this.sort = sort;
+        this.values = values;
+    }
+
+    //añade el _id como desempate, para que la ordenación sea total y el cursor no se salte elementos
+    public static Sort order(Sort sort) {
+        for (Sort.Order o : sort) {
+            if (field(o).equals(ID)) {
+                return sort;
+            }
+        }
+        return sort.and(Sort.by(Sort.Order.asc(ID)));
+    }
+
+    //nombres de los campos de la base de datos que forman parte de la ordenación
+    public static List<String> fields(Sort sort) {
+        List<String> fields = new ArrayList<>();
+        for (Sort.Order o : sort) {
+            fields.add(field(o));
+        }
+        return fields;
+    }
+
+    //construye el cursor que apunta a continuación del documento indicado
+    public static KeysetCursor after(Document last, Sort sort) {
+        List<Object> values = new ArrayList<>();
+        for (Sort.Order o : sort) {
+            Object value = value(last, field(o));
+            //la ordenación por campos de tipo array no define una clave única por documento
+            if (value instanceof List) {
+                throw new IllegalArgumentException("Can not paginate with a cursor sorting by " + o.getProperty());
+            }
+            values.add(value);
+        }
+        return new KeysetCursor(sort.toString(), values);
+    }
+
+    //recupera el cursor a partir del token, comprobando que se generó para la misma ordenación
+    public static KeysetCursor decode(String token, Sort sort) {
+        Document document;
+        try {
+            document = Document.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        List<?> values = document.get("k", List.class);
+        if (!sort.toString().equals(document.getString("s")) || values == null || values.size() != fields(sort).size()) {
+            throw new IllegalArgumentException("Cursor does not match the requested sort");
+        }
+        return new KeysetCursor(sort.toString(), new ArrayList<>(values));
+    }
+
+    //token que se envía al cliente
+    public String encode() {
+        String json = new Document("s", sort).append("k", values).toJson();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //criterio que selecciona los documentos posteriores al cursor en la ordenación indicada:
+    //(k1 > v1) or (k1 = v1 and k2 > v2) or ... or (k1 = v1 and ... and _id > id)
+    public Criteria criteria(Sort sort) {
+        List<Sort.Order> orders = sort.toList();
+        List<Criteria> branches = new ArrayList<>();
+        for (int i = 0; i < orders.size(); i++) {
+            Criteria next = after(orders.get(i), values.get(i));
+            //no hay ningún valor posterior en este campo
+            if (next == null) {
+                continue;
+            }
+            List<Criteria> branch = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                branch.add(Criteria.where(field(orders.get(j))).is(values.get(j)));
+            }
+            branch.add(next);
+            branches.add(branch.size() == 1 ? next : new Criteria().andOperator(branch.toArray(new Criteria[0])));
+        }
+        //si no hay ninguna rama el cursor apunta al final, y no debe devolverse nada
+        if (branches.isEmpty()) {
+            return Criteria.where(ID).exists(false);
+        }
+        return new Criteria().orOperator(branches.toArray(new Criteria[0]));
+    }
+
+    //valores posteriores a uno dado, teniendo en cuenta que mongo ordena los nulos antes que cualquier valor
+    private static Criteria after(Sort.Order order, Object value) {
+        String field = field(order);
+        if (order.isAscending()) {
+            return value == null ? Criteria.where(field).ne(null) : Criteria.where(field).gt(value);
+        }
+        return value == null ? null : new Criteria().orOperator(Criteria.where(field).lt(value), Criteria.where(field).is(null));
+    }
+
+    private static String field(Sort.Order order) {
+        return order.getProperty().equals("id") ? ID : order.getProperty();
+    }
+
+    //obtiene el valor de un campo (con notación de puntos) de un documento
+    private static Object value(Document document, String field) {
+        Object value = document;
+        for (String key : field.split("\\.")) {
+            if (!(value instanceof Document)) {
+                return null;
+            }
+            value = ((Document) value).get(key);
+        }
+        return value;
+    }
+}
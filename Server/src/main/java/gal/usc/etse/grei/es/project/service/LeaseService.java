@@ -0,0 +1,70 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Lease;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.UUID;
+
+//permisos guardados en la colección leases para que, con varias instancias de la aplicación, cada tarea en
+//segundo plano la ejecute solo una: la instancia que lo tiene lo renueva en cada ejecución, y si deja de
+//hacerlo otra puede quedárselo cuando caduque
+@Service
+public class LeaseService {
+    //resultado de pedir un permiso
+    public enum Grant {
+        //lo tiene otra instancia
+        DENIED,
+        //esta instancia no lo tenía, así que otra ha podido ejecutar la tarea desde la última vez
+        ACQUIRED,
+        //esta instancia ya lo tenía y no había caducado
+        RENEWED
+    }
+
+    private final MongoTemplate mongo;
+    //identificador de esta instancia
+    private final String owner = UUID.randomUUID().toString();
+
+    //Instancias
+    @Autowired
+    public LeaseService(MongoTemplate mongo) {
+        this.mongo = mongo;
+    }
+
+    //pide el permiso indicado durante el tiempo indicado; se concede si nadie lo tiene, si ha caducado o si ya
+    //era de esta instancia, con una única operación atómica
+    public Grant acquire(String name, Duration ttl) {
+        long now = System.currentTimeMillis();
+        Query query = Query.query(Criteria.where("_id").is(name)
+                .orOperator(Criteria.where("owner").is(owner), Criteria.where("expires").lt(now)));
+        Update update = new Update().set("owner", owner).set("expires", now + ttl.toMillis());
+        try {
+            Lease previous = mongo.findAndModify(query, update, FindAndModifyOptions.options().upsert(true), Lease.class);
+            return previous != null && owner.equals(previous.getOwner()) && previous.getExpires() > now
+                    ? Grant.RENEWED : Grant.ACQUIRED;
+        } catch (DuplicateKeyException e) {
+            //el documento existe, pero es de otra instancia y no ha caducado
+            return Grant.DENIED;
+        }
+    }
+
+    //libera el permiso, si es de esta instancia
+    public void release(String name) {
+        mongo.updateFirst(Query.query(Criteria.where("_id").is(name).and("owner").is(owner)),
+                new Update().set("expires", 0L), Lease.class);
+    }
+
+    //libera todos los permisos de esta instancia al pararla, para que otra continúe sin esperar a que caduquen
+    @PreDestroy
+    public void shutdown() {
+        mongo.updateMulti(Query.query(Criteria.where("owner").is(owner)), new Update().set("expires", 0L), Lease.class);
+    }
+}
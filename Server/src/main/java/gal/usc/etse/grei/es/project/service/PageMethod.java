@@ -0,0 +1,97 @@
+package gal.usc.etse.grei.es.project.service;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.support.PageableExecutionUtils;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Service
+public class PageMethod {
+    private final MongoTemplate mongo;
+    private final CountCache counts;
+    private final boolean facet;
+
+    //Instancias
+    @Autowired
+    public PageMethod(MongoTemplate mongo, CountCache counts, @Value("${pagination.facet:false}") boolean facet) {
+        this.mongo = mongo;
+        this.counts = counts;
+        this.facet = facet;
+    }
+
+    //ajusta el tamaño de página pedido a entre 1 y el máximo: con 0 o negativo, un limit(size + 1) pasaría a ser
+    //limit(0), que Mongo interpreta como sin límite
+    public static int size(int size, int max) {
+        return Math.max(1, Math.min(size, max));
+    }
+
+    //devuelve la página de documentos que cumplen el criterio, recuperando solo los campos indicados
+    public <T> Page<T> page(Criteria criteria, Pageable request, Class<T> type, String... fields) {
+        return facet ? facet(criteria, request, type, fields) : find(criteria, request, type, fields);
+    }
+
+    //obtiene el contenido con una consulta y el total con otra, que solo se lanza si hace falta
+    private <T> Page<T> find(Criteria criteria, Pageable request, Class<T> type, String... fields) {
+        Query query = Query.query(criteria).with(request);
+        if (fields.length > 0) {
+            query.fields().include(fields);
+        }
+        List<T> result = mongo.find(query, type);
+
+        //el total solo se consulta si no se puede deducir de la propia página
+        CountCache.Count[] count = new CountCache.Count[1];
+        Page<T> page = PageableExecutionUtils.getPage(result, request, () -> {
+            count[0] = counts.count(criteria, type);
+            return count[0].getTotal();
+        });
+        return new CountedPage<>(result, request, page.getTotalElements(), count[0] == null || count[0].isExact());
+    }
+
+    //obtiene el contenido y el total en un único viaje a la base de datos, con una agregación $facet
+    //que ejecuta ambas ramas sobre los documentos seleccionados por el $match
+    private <T> Page<T> facet(Criteria criteria, Pageable request, Class<T> type, String... fields) {
+        List<AggregationOperation> content = new ArrayList<>();
+        if (request.getSort().isSorted()) {
+            content.add(Aggregation.sort(request.getSort()));
+        }
+        if (request.isPaged()) {
+            content.add(Aggregation.skip(request.getOffset()));
+            content.add(Aggregation.limit(request.getPageSize()));
+        }
+        if (fields.length > 0) {
+            //$project incluye siempre el _id, y en una agregación tipada no se puede nombrar como campo
+            content.add(Aggregation.project(Arrays.stream(fields).filter(f -> !f.equals("_id")).toArray(String[]::new)));
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(criteria),
+                Aggregation.facet(content.toArray(new AggregationOperation[0])).as("content")
+                        .and(Aggregation.count().as("total")).as("total")
+        );
+        Document result = mongo.aggregate(aggregation, type, Document.class).getUniqueMappedResult();
+
+        List<T> data = new ArrayList<>();
+        long total = 0;
+        if (result != null) {
+            for (Document d : result.getList("content", Document.class)) {
+                data.add(mongo.getConverter().read(type, d));
+            }
+            List<Document> count = result.getList("total", Document.class);
+            if (!count.isEmpty()) {
+                total = ((Number) count.get(0).get("total")).longValue();
+            }
+        }
+        return new CountedPage<>(data, request, total, true);
+    }
+}
@@ -0,0 +1,116 @@
+package gal.usc.etse.grei.es.project.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//codificación y verificación de contraseñas con BCrypt en un grupo de hilos propio y acotado: como cada hash
+//ocupa un núcleo durante decenas de milisegundos, los inicios de sesión y registros no pueden acaparar la CPU
+//que necesitan el resto de peticiones. Si la cola de espera está llena se rechaza la operación con un 503
+@Service
+public class PasswordHasher implements PasswordEncoder {
+    private final PasswordEncoder delegate = new BCryptPasswordEncoder();
+    private final ThreadPoolExecutor executor;
+    private final Duration retryAfter;
+
+    private final Timer encodes;
+    private final Timer matches;
+    private final Timer waits;
+    private final Counter rejected;
+
+    //Instancias
+    @Autowired
+    public PasswordHasher(@Value("${passwords.threads:0}") int threads, @Value("${passwords.queue:64}") int queue,
+                          @Value("${passwords.retry-after:1s}") Duration retryAfter, MeterRegistry registry) {
+        //sin configurar, un hilo por núcleo
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), runnable -> {
+            Thread thread = new Thread(runnable, "bcrypt-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.retryAfter = retryAfter;
+
+        this.encodes = Timer.builder("passwords.hash")
+                .description("Time spent computing password hashes")
+                .tag("operation", "encode")
+                .register(registry);
+        this.matches = Timer.builder("passwords.hash")
+                .description("Time spent computing password hashes")
+                .tag("operation", "matches")
+                .register(registry);
+        this.waits = Timer.builder("passwords.wait")
+                .description("Time password operations wait in the queue")
+                .register(registry);
+        this.rejected = Counter.builder("passwords.rejected")
+                .description("Password operations rejected because the queue was full")
+                .register(registry);
+        Gauge.builder("passwords.queue", executor, e -> e.getQueue().size())
+                .description("Password operations waiting for a thread")
+                .register(registry);
+        Gauge.builder("passwords.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Password operations being computed")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return submit(encodes, () -> delegate.encode(rawPassword));
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return submit(matches, () -> delegate.matches(rawPassword, encodedPassword));
+    }
+
+    //no calcula ningún hash, así que no pasa por el grupo de hilos
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return delegate.upgradeEncoding(encodedPassword);
+    }
+
+    //ejecuta la operación en el grupo de hilos y espera su resultado
+    private <T> T submit(Timer timer, Callable<T> operation) {
+        long queued = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                waits.record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+                return timer.recordCallable(operation);
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new SaturatedException("Too many password operations in progress", retryAfter);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing a password", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -1,23 +1,52 @@
 package gal.usc.etse.grei.es.project.service;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.fge.jsonpatch.JsonPatch;
 import com.github.fge.jsonpatch.JsonPatchException;
+import gal.usc.etse.grei.es.project.model.Versioned;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mapping.context.MappingContext;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.TypeInformation;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
 
 @Service
 public class PatchMethod {
+    //tipo BSON de los arrays, para comprobar que existe el array en el que se añade un elemento
+    private static final int ARRAY = 4;
+    //campo con la versión de los documentos versionados
+    private static final String VERSION = "version";
+    //campo con el instante de la última modificación, en los documentos que lo tienen
+    private static final String MODIFIED = "modified";
+
     private final ObjectMapper mapper;
+    private final MongoTemplate mongo;
+    private final int retries;
 
     //Instancias
     @Autowired
-    public PatchMethod(ObjectMapper mapper) {
+    public PatchMethod(ObjectMapper mapper, MongoTemplate mongo, @Value("${patch.retries:3}") int retries) {
         this.mapper = mapper;
+        this.mongo = mongo;
+        this.retries = retries;
     }
 
     @SuppressWarnings("unchecked")
@@ -31,4 +60,277 @@ public class PatchMethod {
         //volvemos a transformar el JSON en una instancia de película empleando Jackson
         return (T) mapper.convertValue(updatedJson, data.getClass());
     }
+
+    //aplica el patch directamente en la base de datos, con una única actualización atómica y sin leer antes
+    //el documento; devuelve el documento modificado, o nada si el patch no se puede traducir a operadores de
+    //mongo, el documento no existe o no cumple las condiciones del patch (en esos casos hay que aplicarlo en memoria)
+    public <T> Optional<T> patch(Class<T> type, String id, List<Map<String, Object>> updates) {
+        return patch(type, id, null, updates, true);
+    }
+
+    //aplica el patch sobre un documento versionado, comprobando que nadie lo ha modificado desde que se leyó:
+    //si se indica la versión esperada, el documento debe seguir en ella; si no, se reintenta con la versión
+    //nueva un número limitado de veces. En ambos casos, si no se puede escribir se lanza una
+    //OptimisticLockingFailureException, en lugar de sobrescribir los cambios de otra petición
+    public <T extends Versioned> Optional<T> patch(Class<T> type, String id, Long version, List<Map<String, Object>> updates,
+                                                   UnaryOperator<T> prepare) throws JsonPatchException {
+        return write(type, id, version, updates, prepare, true);
+    }
+
+    //igual que el anterior, pero devuelve el documento tal como estaba justo antes de aplicar el patch, para
+    //que quien mantiene datos derivados de él pueda calcular exactamente qué ha cambiado
+    public <T extends Versioned> Optional<T> previous(Class<T> type, String id, Long version, List<Map<String, Object>> updates,
+                                                      UnaryOperator<T> prepare) throws JsonPatchException {
+        return write(type, id, version, updates, prepare, false);
+    }
+
+    private <T extends Versioned> Optional<T> write(Class<T> type, String id, Long version, List<Map<String, Object>> updates,
+                                                    UnaryOperator<T> prepare, boolean returnNew) throws JsonPatchException {
+        //si el patch se puede traducir, la propia actualización incrementa la versión de forma atómica
+        Optional<T> updated = patch(type, id, version, updates, returnNew);
+        if (updated.isPresent()) {
+            return updated;
+        }
+        for (int attempt = 0; attempt < retries; attempt++) {
+            T current = mongo.findById(id, type);
+            if (current == null) {
+                return Optional.empty();
+            }
+            long read = version(current.getVersion());
+            if (version != null && version != read) {
+                throw new OptimisticLockingFailureException("Document " + id + " is at version " + read + ", not " + version);
+            }
+            //aplicamos el patch en memoria y solo escribimos el documento si sigue en la versión leída
+            T patched = prepare.apply(patch(current, updates));
+            patched.setVersion(read + 1);
+            Query query = Query.query(Criteria.where("_id").is(id).and(VERSION).in(versions(read)));
+            T result = mongo.findAndModify(query, replace(patched), FindAndModifyOptions.options().returnNew(true), type);
+            if (result != null) {
+                return Optional.of(returnNew ? result : current);
+            }
+        }
+        throw new OptimisticLockingFailureException("Document " + id + " was modified concurrently " + retries + " times");
+    }
+
+    //aplica el patch atómico, comprobando la versión del documento si se indica
+    private <T> Optional<T> patch(Class<T> type, String id, Long version, List<Map<String, Object>> updates,
+                                  boolean returnNew) {
+        List<Criteria> guards = new ArrayList<>();
+        Update update = compile(type, updates, guards);
+        if (update == null) {
+            return Optional.empty();
+        }
+        if (Versioned.class.isAssignableFrom(type)) {
+            update.inc(VERSION, 1);
+            if (version != null) {
+                guards.add(Criteria.where(VERSION).in(versions(version)));
+            }
+        }
+        //los documentos que guardan el instante de su última modificación lo actualizan en la misma escritura
+        MongoPersistentEntity<?> entity = mongo.getConverter().getMappingContext().getPersistentEntity(type);
+        if (entity != null && entity.getPersistentProperty(MODIFIED) != null) {
+            update.set(MODIFIED, System.currentTimeMillis());
+        }
+        guards.add(0, Criteria.where("_id").is(id));
+        Query query = Query.query(new Criteria().andOperator(guards.toArray(new Criteria[0])));
+        return Optional.ofNullable(mongo.findAndModify(query, update, FindAndModifyOptions.options().returnNew(returnNew), type));
+    }
+
+    //actualización que deja los campos del modelo como en el objeto: se escriben con $set los que tienen valor y
+    //se eliminan con $unset los que no. No se reemplaza el documento entero porque se perderían los campos que el
+    //modelo no recoge, como las etiquetas con las que FilmService.rate evita aplicar dos veces un cambio
+    private Update replace(Object patched) {
+        Document document = new Document();
+        mongo.getConverter().write(patched, document);
+        Update update = new Update();
+        MongoPersistentEntity<?> entity = mongo.getConverter().getMappingContext().getRequiredPersistentEntity(patched.getClass());
+        for (MongoPersistentProperty property : entity) {
+            if (property.isIdProperty()) {
+                continue;
+            }
+            String field = property.getFieldName();
+            if (document.get(field) != null) {
+                update.set(field, document.get(field));
+            } else {
+                update.unset(field);
+            }
+        }
+        return update;
+    }
+
+    //traduce las operaciones a $set, $unset y $push, añadiendo las condiciones que exige JSON Patch sobre
+    //el documento (que exista lo que se reemplaza o elimina, y el array en el que se añade); devuelve null
+    //si alguna operación no se puede traducir
+    private Update compile(Class<?> type, List<Map<String, Object>> updates, List<Criteria> guards) {
+        if (updates == null || updates.isEmpty()) {
+            return null;
+        }
+        Update update = new Update();
+        List<String> paths = new ArrayList<>();
+        for (Map<String, Object> operation : updates) {
+            Object op = operation.get("op");
+            Object path = operation.get("path");
+            if (!(op instanceof String) || !(path instanceof String)) {
+                return null;
+            }
+            //si falta el valor dejamos que lo rechace JsonPatch
+            if ((op.equals("add") || op.equals("replace")) && !operation.containsKey("value")) {
+                return null;
+            }
+            Target target = resolve(type, (String) path);
+            if (target == null) {
+                return null;
+            }
+            //las operaciones se aplican a la vez, así que no pueden afectar a campos relacionados entre sí
+            for (String other : paths) {
+                if (overlaps(other, target.field)) {
+                    return null;
+                }
+            }
+            paths.add(target.field);
+
+            switch ((String) op) {
+                case "add": {
+                    Object value = value(operation, target);
+                    if (value == null && operation.get("value") != null) {
+                        return null;
+                    }
+                    if (target.append) {
+                        //añadir al final del array
+                        guards.add(Criteria.where(target.field).type(ARRAY));
+                        update.push(target.field).each(value);
+                    } else if (target.index != null) {
+                        //añadir en una posición del array, que no puede ser posterior a su longitud
+                        guards.add(Criteria.where(target.field).type(ARRAY));
+                        if (target.index > 0) {
+                            guards.add(Criteria.where(target.field + "." + (target.index - 1)).exists(true));
+                        }
+                        update.push(target.field).atPosition(target.index).each(value);
+                    } else {
+                        //añadir un campo, que debe estar dentro de un objeto existente
+                        if (target.parent != null) {
+                            guards.add(Criteria.where(target.parent).exists(true));
+                        }
+                        update.set(target.field, value);
+                    }
+                    break;
+                }
+                case "replace": {
+                    Object value = value(operation, target);
+                    if (target.append || (value == null && operation.get("value") != null)) {
+                        return null;
+                    }
+                    String field = target.index != null ? target.field + "." + target.index : target.field;
+                    guards.add(Criteria.where(field).exists(true));
+                    update.set(field, value);
+                    break;
+                }
+                case "remove": {
+                    //eliminar un elemento de un array desplaza los siguientes, y eso no se puede hacer con $pull
+                    if (target.append || target.index != null) {
+                        return null;
+                    }
+                    guards.add(Criteria.where(target.field).exists(true));
+                    update.unset(target.field);
+                    break;
+                }
+                default:
+                    //move, copy y test se aplican en memoria
+                    return null;
+            }
+        }
+        return update;
+    }
+
+    //los documentos anteriores al versionado no tienen versión, y se consideran en la versión 0
+    public static long version(Long version) {
+        return version == null ? 0 : version;
+    }
+
+    //valores del campo de versión que corresponden a una versión
+    private static Object[] versions(long version) {
+        return version == 0 ? new Object[]{0L, null} : new Object[]{version};
+    }
+
+    //convierte el valor de la operación al tipo del campo y después a su representación en mongo;
+    //devuelve null si el valor no es válido para el campo
+    private Object value(Map<String, Object> operation, Target target) {
+        try {
+            Object value = mapper.convertValue(operation.get("value"), target.type);
+            return mongo.getConverter().convertToMongoType(value, (TypeInformation<?>) null);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    //traduce una ruta de JSON Pointer al nombre del campo en mongo, comprobando que existe en la clase
+    private Target resolve(Class<?> type, String path) {
+        if (!path.startsWith("/")) {
+            return null;
+        }
+        MappingContext<? extends MongoPersistentEntity<?>, MongoPersistentProperty> context =
+                mongo.getConverter().getMappingContext();
+        MongoPersistentEntity<?> entity = context.getPersistentEntity(type);
+        String[] segments = path.substring(1).split("/", -1);
+        List<String> fields = new ArrayList<>();
+        JavaType current = null;
+        Target target = new Target();
+
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i].replace("~1", "/").replace("~0", "~");
+            boolean last = i == segments.length - 1;
+            if (entity != null) {
+                MongoPersistentProperty property = entity.getPersistentProperty(segment);
+                //el id del documento no se puede modificar con una actualización
+                //tampoco los campos que no forman parte de la representación JSON, como la versión
+                if (property == null || property.getField() == null || (i == 0 && property.isIdProperty())
+                        || property.isAnnotationPresent(JsonIgnore.class)) {
+                    return null;
+                }
+                fields.add(property.getFieldName());
+                current = mapper.constructType(property.getField().getGenericType());
+            } else if (current != null && current.isCollectionLikeType()) {
+                current = current.getContentType();
+                if (segment.equals("-") && last) {
+                    target.append = true;
+                } else if (segment.matches("0|[1-9][0-9]{0,8}")) {
+                    //el índice solo forma parte del nombre del campo si no es el último segmento
+                    if (last) {
+                        target.index = Integer.parseInt(segment);
+                    } else {
+                        fields.add(segment);
+                    }
+                } else {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+            entity = current.isContainerType() ? null : context.getPersistentEntity(current.getRawClass());
+        }
+
+        target.field = String.join(".", fields);
+        target.parent = fields.size() > 1 ? String.join(".", fields.subList(0, fields.size() - 1)) : null;
+        target.type = current;
+        return target;
+    }
+
+    //comprueba si dos campos son el mismo o uno contiene al otro
+    private static boolean overlaps(String a, String b) {
+        return a.equals(b) || a.startsWith(b + ".") || b.startsWith(a + ".");
+    }
+
+    //campo de mongo al que se refiere una ruta del patch
+    private static class Target {
+        //nombre del campo; si la ruta termina en un índice o en "-", el del array
+        private String field;
+        //objeto que contiene el campo, si no es de primer nivel
+        private String parent;
+        //índice del array, si la ruta termina en uno
+        private Integer index;
+        //si la ruta termina en "-", que indica el final del array
+        private boolean append;
+        //tipo del valor que se escribe en la ruta
+        private JavaType type;
+    }
 }
@@ -0,0 +1,229 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.Propagation;
+import gal.usc.etse.grei.es.project.model.User;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+//copia en las valoraciones los cambios del título de las películas y del nombre de los usuarios. Las
+//modificaciones solo dejan constancia del cambio en la colección propagations, y un proceso en segundo plano
+//actualiza las valoraciones por lotes, esperando entre uno y otro para no retrasar las peticiones. Con varias
+//instancias, cada cambio lo propaga solo la que lo reserva, y otra lo retoma si deja de renovar la reserva
+@Service
+public class PropagationService {
+    private static final Logger log = LoggerFactory.getLogger(PropagationService.class);
+    public static final String FILM = "film";
+    public static final String USER = "user";
+
+    private final MongoTemplate mongo;
+    private final int batch;
+    private final double pause;
+    private final long interval;
+    private final Duration lease;
+    //identificador de esta instancia, con el que reserva los cambios que propaga
+    private final String owner = UUID.randomUUID().toString();
+    //un hilo propio, porque las esperas entre lotes bloquearían el planificador común a las demás tareas
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "propagations");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Instancias
+    @Autowired
+    public PropagationService(MongoTemplate mongo, @Value("${propagation.batch-size:500}") int batch,
+                              @Value("${propagation.pause-ratio:1.0}") double pause,
+                              @Value("${propagation.interval:5000}") long interval,
+                              @Value("${propagation.lease:5m}") Duration lease) {
+        this.mongo = mongo;
+        this.batch = batch;
+        this.pause = pause;
+        this.interval = interval;
+        this.lease = lease;
+    }
+
+    //deja constancia de que ha cambiado un campo copiado en las valoraciones; si ya había un cambio pendiente
+    //del mismo documento se aumenta su revisión, y se propagará una sola vez
+    public void changed(String type, String source) {
+        mongo.upsert(Query.query(Criteria.where("_id").is(type + ":" + source)), new Update()
+                .set("type", type)
+                .set("source", source)
+                .inc("revision", 1)
+                .setOnInsert("created", System.currentTimeMillis()), Propagation.class);
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::propagate, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        //los cambios de esta instancia quedan libres para que otra los retome sin esperar a que caduquen
+        mongo.updateMulti(Query.query(Criteria.where("owner").is(owner)), Update.update("lease", 0L), Propagation.class);
+    }
+
+    //procesa los cambios pendientes, del más antiguo al más reciente
+    public void propagate() {
+        //un fallo no puede detener las ejecuciones siguientes
+        try {
+            Query query = new Query().with(Sort.by("created"));
+            query.fields().include("_id");
+            for (Propagation pending : mongo.find(query, Propagation.class)) {
+                Propagation propagation = claim(pending.getId());
+                //otra instancia lo está propagando
+                if (propagation == null) {
+                    continue;
+                }
+                try {
+                    if (!propagate(propagation)) {
+                        log.warn("Propagation {} was taken over by another instance", propagation.getId());
+                        continue;
+                    }
+                    //solo damos el cambio por propagado si no ha vuelto a cambiar entretanto; si ha cambiado, se
+                    //libera para volver a propagarlo en la siguiente ejecución
+                    if (mongo.remove(Query.query(Criteria.where("_id").is(propagation.getId())
+                            .and("revision").is(propagation.getRevision())
+                            .and("owner").is(owner)), Propagation.class).getDeletedCount() == 0) {
+                        release(propagation.getId());
+                    }
+                } catch (RuntimeException e) {
+                    //se reintentará en la siguiente ejecución
+                    log.error("Propagation {} failed", propagation.getId(), e);
+                    release(propagation.getId());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Could not read pending propagations", e);
+        }
+    }
+
+    //reserva el cambio con una única operación atómica, si nadie lo tiene o quien lo tenía ha dejado de renovarlo;
+    //devuelve el cambio tal como queda, con la revisión que se va a propagar, o null si no se ha podido reservar
+    private Propagation claim(String id) {
+        long now = System.currentTimeMillis();
+        return mongo.findAndModify(Query.query(Criteria.where("_id").is(id).and("lease").not().gt(now)),
+                Update.update("owner", owner).set("lease", now + lease.toMillis()),
+                FindAndModifyOptions.options().returnNew(true), Propagation.class);
+    }
+
+    //renueva la reserva antes de cada lote; si ya no es de esta instancia, se deja de propagar
+    private boolean renew(String id) {
+        return mongo.updateFirst(owned(id), Update.update("lease", System.currentTimeMillis() + lease.toMillis()),
+                Propagation.class).getMatchedCount() > 0;
+    }
+
+    private void release(String id) {
+        mongo.updateFirst(owned(id), Update.update("lease", 0L), Propagation.class);
+    }
+
+    private Query owned(String id) {
+        return Query.query(Criteria.where("_id").is(id).and("owner").is(owner));
+    }
+
+    //copia el valor actual del documento en sus valoraciones; devuelve false si el cambio deja de ser de esta
+    //instancia antes de terminar
+    private boolean propagate(Propagation propagation) throws InterruptedException {
+        String id = propagation.getId();
+        String source = propagation.getSource();
+        switch (propagation.getType()) {
+            case FILM: {
+                Query query = Query.query(Criteria.where("_id").is(source));
+                query.fields().include("title");
+                Film film = mongo.findOne(query, Film.class);
+                //el id de la película puede estar guardado en las valoraciones como ObjectId o como texto
+                List<Object> ids = ObjectId.isValid(source)
+                        ? Arrays.asList(new ObjectId(source), source)
+                        : Collections.singletonList(source);
+                //si la película ya no existe, sus valoraciones se eliminan aparte
+                return film == null || propagate(id, Criteria.where("film._id").in(ids), "film.title", film.getTitle());
+            }
+            case USER: {
+                Query query = Query.query(Criteria.where("_id").is(source));
+                query.fields().include("name");
+                User user = mongo.findOne(query, User.class);
+                return user == null || propagate(id, Criteria.where("user._id").is(source), "user.name", user.getName());
+            }
+            default:
+                log.warn("Unknown propagation type {}", propagation.getType());
+                return true;
+        }
+    }
+
+    //actualiza por lotes las valoraciones con un valor distinto del actual; cada lote se busca por el índice del
+    //documento original y se modifica con un único updateMany
+    private boolean propagate(String id, Criteria criteria, String field, Object value) throws InterruptedException {
+        long updated = 0;
+        //se consulta la colección sin pasar por el modelo, que convertiría a ObjectId los ids guardados como texto
+        String collection = mongo.getCollectionName(Assessment.class);
+        List<Object> ids;
+        do {
+            if (!renew(id)) {
+                return false;
+            }
+            long start = System.currentTimeMillis();
+            Query query = Query.query(criteria).addCriteria(Criteria.where(field).ne(value)).limit(batch);
+            query.fields().include("_id");
+            ids = mongo.find(query, Document.class, collection).stream()
+                    .map(d -> d.get("_id"))
+                    .collect(Collectors.toList());
+            if (ids.isEmpty()) {
+                break;
+            }
+            //volvemos a comprobar el valor, por si alguna valoración ya se ha actualizado
+            updated += mongo.updateMulti(Query.query(Criteria.where("_id").in(ids).and(field).ne(value)),
+                    Update.update(field, value), collection).getModifiedCount();
+            //esperamos en proporción a lo que ha tardado el lote, para dejar la base de datos libre el resto del tiempo
+            Thread.sleep((long) ((System.currentTimeMillis() - start) * pause));
+        } while (ids.size() == batch);
+        log.debug("Propagated {} to {} assessments", id, updated);
+        return true;
+    }
+
+    //comprueba si el patch modifica alguno de los campos indicados (o los elimina al moverlos)
+    public static boolean touches(List<Map<String, Object>> updates, String... paths) {
+        if (updates == null) {
+            return false;
+        }
+        for (Map<String, Object> operation : updates) {
+            for (String path : paths) {
+                if (affects(operation.get("path"), path)
+                        || ("move".equals(operation.get("op")) && affects(operation.get("from"), path))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //la operación afecta al campo si se aplica sobre él, sobre algo que contiene, o sobre el documento entero
+    private static boolean affects(Object pointer, String path) {
+        return pointer instanceof String
+                && (pointer.equals(path) || ((String) pointer).startsWith(path + "/") || pointer.equals(""));
+    }
+}
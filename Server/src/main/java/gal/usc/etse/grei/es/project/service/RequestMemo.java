@@ -0,0 +1,106 @@
+package gal.usc.etse.grei.es.project.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+//mapa de identidad asociado a la petición HTTP en curso: cada entidad se lee de la base de datos
+//como mucho una vez por petición, aunque la pidan varias veces los controladores, los servicios
+//o las expresiones de @PreAuthorize
+@Service
+public class RequestMemo {
+    private static final Logger log = LoggerFactory.getLogger(RequestMemo.class);
+    private static final String ATTRIBUTE = RequestMemo.class.getName();
+
+    private final DistributionSummary loads;
+    private final DistributionSummary saved;
+
+    //Instancias
+    @Autowired
+    public RequestMemo(MeterRegistry registry) {
+        this.loads = DistributionSummary.builder("requests.memo.loads")
+                .description("Entities read from the database per request")
+                .register(registry);
+        this.saved = DistributionSummary.builder("requests.memo.saved")
+                .description("Database reads avoided per request")
+                .register(registry);
+    }
+
+    //devuelve la entidad guardada en la petición, o la carga y la guarda si es la primera vez que se pide
+    @SuppressWarnings("unchecked")
+    public <T> Optional<T> get(Class<?> type, String id, Supplier<Optional<T>> loader) {
+        Entries entries = entries();
+        //fuera de una petición (tareas en segundo plano) no se memoriza nada
+        if (entries == null || id == null) {
+            return loader.get();
+        }
+        String key = key(type, id);
+        Optional<T> result = (Optional<T>) entries.values.get(key);
+        if (result != null) {
+            entries.saved++;
+            return result;
+        }
+        result = loader.get();
+        entries.loads++;
+        entries.values.put(key, result);
+        return result;
+    }
+
+    //descarta la entidad guardada, al haberse modificado en esta petición
+    public void evict(Class<?> type, String id) {
+        Entries entries = entries();
+        if (entries != null) {
+            entries.values.remove(key(type, id));
+        }
+    }
+
+    //descarta todas las entidades guardadas de un tipo
+    public void evict(Class<?> type) {
+        Entries entries = entries();
+        if (entries != null) {
+            entries.values.keySet().removeIf(key -> key.startsWith(type.getName() + ":"));
+        }
+    }
+
+    //recupera las entidades de la petición en curso, creándolas la primera vez
+    private Entries entries() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Entries entries = (Entries) attributes.getAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (entries == null) {
+            Entries created = new Entries();
+            attributes.setAttribute(ATTRIBUTE, created, RequestAttributes.SCOPE_REQUEST);
+            //al terminar la petición publicamos cuántas lecturas se han hecho y cuántas se han evitado
+            attributes.registerDestructionCallback(ATTRIBUTE, () -> {
+                loads.record(created.loads);
+                saved.record(created.saved);
+                log.debug("Request entities: {} loaded, {} reads saved", created.loads, created.saved);
+            }, RequestAttributes.SCOPE_REQUEST);
+            entries = created;
+        }
+        return entries;
+    }
+
+    private static String key(Class<?> type, String id) {
+        return type.getName() + ":" + id;
+    }
+
+    //entidades y contadores de una petición
+    private static class Entries {
+        private final Map<String, Optional<?>> values = new HashMap<>();
+        private int loads = 0;
+        private int saved = 0;
+    }
+}
@@ -0,0 +1,248 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.RevokedToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//tokens revocados antes de caducar: se guardan en la colección revocations, que elimina cada documento cuando
+//los tokens afectados ya habrían caducado, y se copian en memoria en un mapa exacto precedido de un filtro de
+//Bloom. Así, comprobar un token que no se ha revocado (casi todos) no consulta la base de datos ni el mapa;
+//las revocaciones hechas en otras instancias se leen periódicamente, en un hilo propio
+@Service
+public class RevocationService {
+    private static final Logger log = LoggerFactory.getLogger(RevocationService.class);
+    private static final String TOKEN = "jti:";
+    private static final String USER = "sub:";
+
+    private final MongoTemplate mongo;
+    //duración máxima de los tokens, que es lo que tienen que durar las revocaciones de un usuario
+    private final long duration;
+    //revocaciones previstas y probabilidad de falso positivo con las que se dimensiona el filtro
+    private final int expected;
+    private final double fpp;
+    //intervalo, en milisegundos, entre dos lecturas de las revocaciones hechas en otras instancias
+    private final long refresh;
+    //las lecturas no usan el planificador común, que comparten tareas que pueden tardar (como el cálculo de
+    //las tendencias); así una revocación hecha en otra instancia se ve, como mucho, refresh más una lectura después
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "revocations");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //revocaciones vigentes y el instante en el que se hicieron
+    private final Map<String, Revocation> revoked = new ConcurrentHashMap<>();
+    private volatile BloomFilter filter;
+    //instante de la revocación más reciente leída de la base de datos
+    private volatile long polled = 0;
+
+    //Instancias
+    @Autowired
+    public RevocationService(MongoTemplate mongo, @Value("${jwt.duration:60m}") Duration duration,
+                             @Value("${revocation.expected:100000}") int expected,
+                             @Value("${revocation.fpp:0.0001}") double fpp,
+                             @Value("${revocation.refresh:5000}") long refresh) {
+        this.mongo = mongo;
+        this.duration = duration.toMillis();
+        this.expected = expected;
+        this.fpp = fpp;
+        this.refresh = refresh;
+        this.filter = new BloomFilter(expected, fpp);
+    }
+
+    //comprueba si el token, identificado por su jti, o todos los emitidos para su usuario hasta su emisión,
+    //se han revocado
+    public boolean isRevoked(String jti, String subject, Date issuedAt) {
+        BloomFilter current = filter;
+        if (jti != null && current.mightContain(TOKEN + jti) && revoked.containsKey(TOKEN + jti)) {
+            return true;
+        }
+        if (subject != null && current.mightContain(USER + subject)) {
+            Revocation revocation = revoked.get(USER + subject);
+            //los tokens sin fecha de emisión no se pueden distinguir de los anteriores a la revocación
+            return revocation != null && (issuedAt == null || issuedAt.getTime() <= seconds(revocation.created));
+        }
+        return false;
+    }
+
+    //el iat de los tokens se guarda en segundos enteros (se trunca al emitirlos), así que no se puede saber si un
+    //token emitido en el mismo segundo que la revocación es anterior o posterior a ella. La revocación de un
+    //usuario se compara con su instante truncado también a segundos, y rechaza los tokens emitidos en ese
+    //segundo o antes: ninguno anterior a la revocación se acepta, y los emitidos en el resto de ese segundo
+    //también se rechazan, así que hay que volver a identificarse
+    static long seconds(long millis) {
+        return millis - Math.floorMod(millis, 1000L);
+    }
+
+    //revoca un token hasta su caducidad
+    public void revoke(String jti, Date expiration) {
+        if (jti == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expires = expiration == null ? now + duration : expiration.getTime();
+        if (expires <= now) {
+            return;
+        }
+        save(TOKEN + jti, now, expires);
+    }
+
+    //revoca todos los tokens emitidos hasta ahora para el usuario, al eliminarlo
+    public void revokeUser(String email) {
+        if (email == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        save(USER + email, now, now + duration);
+    }
+
+    //lee todas las revocaciones vigentes al arrancar, y programa las lecturas periódicas
+    @PostConstruct
+    public void load() {
+        poll(0);
+        log.info("Loaded {} token revocations", revoked.size());
+        scheduler.scheduleWithFixedDelay(this::refresh, refresh, refresh, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //lee las revocaciones hechas en otras instancias y descarta las que ya no afectan a ningún token
+    public void refresh() {
+        //un fallo no puede detener las lecturas siguientes
+        try {
+            //se vuelven a leer las de los últimos segundos, por si se guardaron con el reloj algo retrasado
+            poll(polled - 5000);
+            purge();
+        } catch (RuntimeException e) {
+            log.warn("Could not refresh token revocations", e);
+        }
+    }
+
+    private void poll(long since) {
+        Query query = Query.query(Criteria.where("created").gt(since).and("expires").gt(new Date()));
+        for (RevokedToken token : mongo.find(query, RevokedToken.class)) {
+            add(token.getId(), token.getCreated(), token.getExpires().getTime());
+            polled = Math.max(polled, token.getCreated());
+        }
+    }
+
+    //guarda la revocación; si ya existía (un usuario revocado otra vez) se adelanta su instante y su caducidad
+    private void save(String id, long created, long expires) {
+        try {
+            mongo.insert(new RevokedToken(id, created, new Date(expires)));
+        } catch (DuplicateKeyException e) {
+            mongo.updateFirst(Query.query(Criteria.where("_id").is(id)),
+                    new Update().max("created", created).max("expires", new Date(expires)), RevokedToken.class);
+        }
+        add(id, created, expires);
+    }
+
+    //el mapa y el filtro se modifican bajo el mismo bloqueo, para que al reconstruir el filtro no se pierda
+    //ninguna revocación añadida a la vez; las comprobaciones no lo necesitan
+    private synchronized void add(String id, long created, long expires) {
+        revoked.merge(id, new Revocation(created, expires),
+                (a, b) -> new Revocation(Math.max(a.created, b.created), Math.max(a.expires, b.expires)));
+        filter.put(id);
+    }
+
+    //un filtro de Bloom no permite eliminar elementos, así que al descartar revocaciones caducadas se reconstruye
+    private synchronized void purge() {
+        long now = System.currentTimeMillis();
+        if (!revoked.values().removeIf(revocation -> revocation.expires <= now)) {
+            return;
+        }
+        BloomFilter rebuilt = new BloomFilter(Math.max(expected, revoked.size() * 2), fpp);
+        revoked.keySet().forEach(rebuilt::put);
+        filter = rebuilt;
+    }
+
+    //instante de una revocación y de su caducidad, en milisegundos
+    private static class Revocation {
+        private final long created;
+        private final long expires;
+
+        private Revocation(long created, long expires) {
+            this.created = created;
+            this.expires = expires;
+        }
+    }
+
+    //filtro de Bloom de tamaño fijo, que se puede consultar mientras se añaden elementos; las posiciones de cada
+    //elemento se obtienen combinando dos hashes de 64 bits
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long size;
+        private final int hashes;
+
+        private BloomFilter(int expected, double fpp) {
+            long size = (long) Math.ceil(-Math.max(1, expected) * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bits = new AtomicLongArray((int) Math.max(1, (size + 63) / 64));
+            this.size = bits.length() * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) this.size / Math.max(1, expected) * Math.log(2)));
+        }
+
+        private void put(String value) {
+            long h1 = hash(value);
+            long h2 = mix(h1) | 1L;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, size);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                do {
+                    current = bits.get(word);
+                } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        private boolean mightContain(String value) {
+            long h1 = hash(value);
+            long h2 = mix(h1) | 1L;
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(h1 + i * h2, size);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //FNV-1a de 64 bits sobre los caracteres
+        private static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return mix(hash);
+        }
+
+        //finalizador de SplitMix64, para repartir los bits del hash
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package gal.usc.etse.grei.es.project.service;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+
+//la operación no se puede atender por falta de capacidad; se responde con un 503 indicando en Retry-After
+//cuándo puede volver a intentarse
+public class SaturatedException extends ResponseStatusException {
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public SaturatedException(String reason, Duration retryAfter) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, reason);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    //segundos que debe esperar el cliente, como mínimo uno
+    public String getRetryAfterSeconds() {
+        return Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000));
+    }
+
+    @Override
+    public HttpHeaders getResponseHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, getRetryAfterSeconds());
+        return headers;
+    }
+}
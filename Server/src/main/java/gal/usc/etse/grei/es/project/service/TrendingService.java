@@ -0,0 +1,238 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.Checkpoint;
+import gal.usc.etse.grei.es.project.model.TrendingFilm;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+//películas en tendencia: cada valoración suma a la película una puntuación que se reduce a la mitad cada
+//cierto tiempo. Un proceso en segundo plano lee las valoraciones nuevas, mantiene las puntuaciones en memoria
+//y las guarda en la colección trending. Con varias instancias solo lo ejecuta la que tiene el permiso
+//"trending"; las demás leen de la colección solo las primeras películas según el ranking que esta guarda
+@Service
+public class TrendingService {
+    private static final Logger log = LoggerFactory.getLogger(TrendingService.class);
+    private static final String CHECKPOINT = "trending";
+    //valoraciones leídas en cada consulta
+    private static final int BATCH = 1000;
+    //puntuación por debajo de la cual la película deja de estar en tendencia
+    private static final double MIN_SCORE = 0.01;
+
+    private final MongoTemplate mongo;
+    private final LeaseService leases;
+    private final long halfLife;
+    private final int size;
+    //tiempo que se repasa antes del punto de control en cada ejecución: debe superar lo que puede tardar en
+    //guardarse una valoración desde que se genera su id, o las que se guarden más tarde no se sumarán
+    private final long overlap;
+    //duración del permiso, que se renueva en cada lote
+    private final Duration lease;
+    //puntuaciones de las películas, solo las modifica el proceso en segundo plano
+    private final Map<String, TrendingFilm> scores = new HashMap<>();
+    //películas con más puntuación, ordenadas, que se sirven directamente desde memoria
+    private volatile List<TrendingFilm> top = Collections.emptyList();
+    //indica si las puntuaciones en memoria son las guardadas, porque esta instancia ha tenido el permiso sin
+    //interrupción desde que las leyó
+    private boolean current = false;
+
+    //Instancias
+    @Autowired
+    public TrendingService(MongoTemplate mongo, LeaseService leases, @Value("${trending.half-life:6h}") Duration halfLife,
+                           @Value("${trending.size:100}") int size, @Value("${trending.overlap:1m}") Duration overlap,
+                           @Value("${trending.lease:5m}") Duration lease) {
+        this.mongo = mongo;
+        this.leases = leases;
+        this.halfLife = halfLife.toMillis();
+        this.size = size;
+        this.overlap = overlap.toMillis();
+        this.lease = lease;
+    }
+
+    //devuelve las películas en tendencia, con su puntuación actual
+    public List<TrendingFilm> get(int size) {
+        long now = System.currentTimeMillis();
+        return top.stream()
+                .limit(size)
+                .map(f -> new TrendingFilm(f.getId(), f.getTitle(), decay(f.getScore(), now - f.getUpdated()), now))
+                .collect(Collectors.toList());
+    }
+
+    //lee las valoraciones creadas desde la última ejecución y actualiza las puntuaciones
+    @Scheduled(fixedDelayString = "${trending.interval:60000}")
+    public synchronized void refresh() {
+        long now = System.currentTimeMillis();
+        LeaseService.Grant grant = leases.acquire(CHECKPOINT, lease);
+        if (grant == LeaseService.Grant.DENIED) {
+            //otra instancia calcula las puntuaciones: servimos las primeras que ha guardado
+            current = false;
+            scores.clear();
+            top = read();
+            return;
+        }
+        //si otra instancia ha podido calcularlas desde la última vez, partimos de las guardadas
+        if (grant == LeaseService.Grant.ACQUIRED || !current) {
+            load();
+            current = true;
+        }
+        Checkpoint checkpoint = mongo.findById(CHECKPOINT, Checkpoint.class);
+        //los ids de las valoraciones crecen con su fecha de creación, pero se guardan en otro orden: repasamos
+        //también las anteriores al punto de control en un margen, y descartamos por su id las ya sumadas. La
+        //primera vez empezamos en el punto a partir del cual las valoraciones ya apenas puntúan
+        ObjectId position = checkpoint != null
+                ? new ObjectId(new Date(new ObjectId(checkpoint.getPosition()).getDate().getTime() - overlap))
+                : new ObjectId(new Date(now - 7 * halfLife));
+        //ninguna ejecución posterior repasará valoraciones anteriores a este instante, ni siquiera si esta se
+        //interrumpe antes de guardar el punto de control
+        long horizon = position.getDate().getTime();
+
+        List<Document> batch;
+        do {
+            Query query = Query.query(Criteria.where("_id").gt(position)).with(Sort.by("_id")).limit(BATCH);
+            query.fields().include("film._id", "film.title", "rating");
+            batch = mongo.find(query, Document.class, mongo.getCollectionName(Assessment.class));
+
+            Map<String, TrendingFilm> changed = new HashMap<>();
+            for (Document assessment : batch) {
+                position = assessment.getObjectId("_id");
+                Document film = assessment.get("film", Document.class);
+                if (film == null || film.get("_id") == null) {
+                    continue;
+                }
+                String id = film.get("_id").toString();
+                Object rating = assessment.get("rating");
+                //las valoraciones más altas suman más
+                double weight = rating instanceof Number ? ((Number) rating).doubleValue() / 10 : 0.5;
+                TrendingFilm trending = add(id, film.getString("title"), weight, position, horizon);
+                if (trending != null) {
+                    changed.put(id, trending);
+                }
+            }
+            //cada película se guarda junto con las valoraciones recientes que incluye, y el punto de control
+            //después: si se para entre ambas escrituras, al repetir el lote no se vuelven a sumar
+            save(changed.values());
+            if (!batch.isEmpty() && (checkpoint == null || !position.toHexString().equals(checkpoint.getPosition()))) {
+                mongo.save(new Checkpoint(CHECKPOINT, position.toHexString()));
+            }
+            //si se ha perdido el permiso, dejamos de escribir; se volverán a leer las puntuaciones guardadas
+            if (batch.size() == BATCH && leases.acquire(CHECKPOINT, lease) != LeaseService.Grant.RENEWED) {
+                current = false;
+                break;
+            }
+        } while (batch.size() == BATCH);
+
+        if (current) {
+            prune(now);
+        }
+        rank();
+    }
+
+    //ordena las películas por su puntuación actual; todas decaen al mismo ritmo, así que el orden es el de su
+    //ranking y no cambia hasta la siguiente valoración
+    private void rank() {
+        top = scores.values().stream()
+                .sorted(Comparator.comparingDouble(TrendingFilm::getRank).reversed())
+                .limit(size)
+                .map(f -> new TrendingFilm(f.getId(), f.getTitle(), f.getScore(), f.getUpdated()))
+                .collect(Collectors.toList());
+    }
+
+    //lee de la colección solo las primeras películas, usando el índice por ranking
+    private List<TrendingFilm> read() {
+        Query query = new Query().with(Sort.by(Sort.Direction.DESC, "rank")).limit(size);
+        query.fields().include("title", "score", "updated");
+        return mongo.find(query, TrendingFilm.class);
+    }
+
+    //recupera todas las puntuaciones guardadas, para seguir calculándolas
+    private void load() {
+        scores.clear();
+        for (TrendingFilm film : mongo.findAll(TrendingFilm.class)) {
+            if (film.getRank() == null) {
+                film.setRank(rank(film.getScore(), film.getUpdated()));
+            }
+            scores.put(film.getId(), film);
+        }
+        log.debug("Trending scores loaded for {} films", scores.size());
+    }
+
+    //suma una valoración a la puntuación de la película, expresando ambas en el instante más reciente, aunque la
+    //valoración sea anterior a otras ya sumadas; devuelve null si la valoración ya estaba sumada
+    private TrendingFilm add(String id, String title, double weight, ObjectId assessment, long horizon) {
+        long time = assessment.getDate().getTime();
+        TrendingFilm film = scores.computeIfAbsent(id, key -> new TrendingFilm(key, title, 0.0, time));
+        List<String> recent = film.getRecent() != null ? film.getRecent() : new ArrayList<>();
+        if (recent.contains(assessment.toHexString())) {
+            return null;
+        }
+        //olvidamos las valoraciones que ya no se van a volver a repasar
+        recent.removeIf(r -> new ObjectId(r).getDate().getTime() < horizon);
+        recent.add(assessment.toHexString());
+        long reference = Math.max(film.getUpdated(), time);
+        double score = decay(film.getScore(), reference - film.getUpdated()) + decay(weight, reference - time);
+        film.setScore(score)
+                .setUpdated(reference)
+                .setRank(rank(score, reference))
+                .setRecent(recent);
+        if (title != null) {
+            film.setTitle(title);
+        }
+        return film;
+    }
+
+    //guarda las puntuaciones modificadas en una única operación
+    private void save(Collection<TrendingFilm> films) {
+        if (films.isEmpty()) {
+            return;
+        }
+        BulkOperations operations = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, TrendingFilm.class);
+        for (TrendingFilm film : films) {
+            operations.upsert(Query.query(Criteria.where("_id").is(film.getId())), new Update()
+                    .set("title", film.getTitle())
+                    .set("score", film.getScore())
+                    .set("updated", film.getUpdated())
+                    .set("rank", film.getRank())
+                    .set("recent", film.getRecent()));
+        }
+        operations.execute();
+    }
+
+    //descarta las películas cuya puntuación ya es despreciable
+    private void prune(long now) {
+        List<String> expired = scores.values().stream()
+                .filter(f -> decay(f.getScore(), now - f.getUpdated()) < MIN_SCORE)
+                .map(TrendingFilm::getId)
+                .collect(Collectors.toList());
+        if (!expired.isEmpty()) {
+            expired.forEach(scores::remove);
+            mongo.remove(Query.query(Criteria.where("_id").in(expired)), TrendingFilm.class);
+        }
+    }
+
+    //ranking de una puntuación: comparar log2(score) - (now - updated) / semivida entre películas es comparar
+    //sus puntuaciones actuales, y el término de now es común a todas, así que se puede omitir
+    private double rank(double score, long updated) {
+        return Math.log(score) / Math.log(2) + (double) updated / halfLife;
+    }
+
+    //valor de una puntuación después de un tiempo
+    private double decay(double score, long elapsed) {
+        return score * Math.pow(0.5, (double) elapsed / halfLife);
+    }
+}
@@ -15,25 +15,38 @@ public class UserService {
     private final UserRepository users;
     private final PatchMethod patchMethod;
     private final PasswordEncoder encoder;
+    private final RequestMemo memo;
+    private final PropagationService propagations;
+    private final AuthenticationService authentication;
+    private final RevocationService revocations;
 
     //Instancias
     @Autowired
-    public UserService(UserRepository people, PatchMethod patchMethod, PasswordEncoder encoder) {
+    public UserService(UserRepository people, PatchMethod patchMethod, PasswordEncoder encoder, RequestMemo memo,
+                       PropagationService propagations, AuthenticationService authentication,
+                       RevocationService revocations) {
         this.users = people;
         this.encoder = encoder;
         this.patchMethod = patchMethod;
+        this.memo = memo;
+        this.propagations = propagations;
+        this.authentication = authentication;
+        this.revocations = revocations;
     }
 
     //devuelve el usuario con el email correspondiente
     public Optional<User> get(String email) {
-        Optional<User> user = users.findById(email);
-        if (user.isPresent()) {
-            //borramos la contraseña para que no se muestre
-            user.get().setPassword(null);
-            //devolvemos el usuario encontrado
-            return user;
-        }
-        return Optional.empty();
+        //cada usuario se lee una sola vez por petición
+        return memo.get(User.class, email, () -> {
+            Optional<User> user = users.findById(email);
+            if (user.isPresent()) {
+                //borramos la contraseña para que no se muestre
+                user.get().setPassword(null);
+                //devolvemos el usuario encontrado
+                return user;
+            }
+            return Optional.empty();
+        });
     }
 
     //devuelve la lista de usuarios paginados
@@ -58,46 +71,36 @@ public class UserService {
 
     //devuelve el usuario con el email correspondiente
     public Optional<User> getAllInfo(String email) {
-        Optional<User> user = users.findById(email);
-        if (user.isPresent()) {
-            //borramos la contraseña para que no se muestre
-            user.get().setPassword(null);
-            //devolvemos el usuario encontrado
-            return user;
-        }
-        return Optional.empty();
+        return this.get(email);
     }
 
     //inserta el usuario
     public User insert(User user) {
         //codificamos la contraseña
         user.setPassword(encoder.encode(user.getPassword()));
-        //insertamos el usuario
-        user = users.insert(user);
+        //insertamos el usuario, en la versión 0
+        user = users.insert(user.setVersion(0L));
+        memo.evict(User.class, user.getEmail());
         //borramos la contraseña para que no se muestre
         user.setPassword(null);
         //devolvemos el usuario
         return user;
     }
 
-    //modifica el usuario
-    public User patch(String id, List<Map<String, Object>> updates) throws JsonPatchException {
-        //si el usuario está presente, recupera el usuario con todos sus datos
-        if (users.findById(id).isPresent()) {
-            //obtenemos el usuario de la base de datos
-            User user = users.findById(id).get();
-            //actualizamos los datos con el patch
-            user = patchMethod.patch(user, updates);
-            //para cada operación del patch
-            for (Map<String, Object> update : updates) {
-                //si se modifica la contraseña, se encripta, en caso contrario no
-                if (update.containsValue("replace") && update.containsValue("/password")) {
-                    //codificamos la contraseña
-                    user.setPassword(encoder.encode(user.getPassword()));
-                }
+    //modifica el usuario; si se indica la versión, solo se modifica si el usuario sigue en ella
+    public User patch(String id, Long version, List<Map<String, Object>> updates) throws JsonPatchException {
+        //aplicamos el patch con la contraseña ya codificada, con una única actualización si es posible,
+        //o en memoria comprobando la versión leída
+        Optional<User> updated = patchMethod.patch(User.class, id, version, encodePassword(updates), user -> user);
+        if (updated.isPresent()) {
+            memo.evict(User.class, id);
+            //la contraseña o los roles pueden haber cambiado
+            authentication.evict(id);
+            //el nombre también está copiado en las valoraciones
+            if (PropagationService.touches(updates, "/name")) {
+                propagations.changed(PropagationService.USER, id);
             }
-            //actualizamos en la base de datos
-            user = users.save(user);
+            User user = updated.get();
             //borramos la contraseña para que no se muestre
             user.setPassword(null);
             //retornamos el usuario
@@ -106,8 +109,26 @@ public class UserService {
         return null;
     }
 
+    //copia las operaciones del patch, codificando la contraseña que se añada o reemplace
+    private List<Map<String, Object>> encodePassword(List<Map<String, Object>> updates) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map<String, Object> update : updates) {
+            if ((update.containsValue("replace") || update.containsValue("add")) && update.containsValue("/password")
+                    && update.get("value") instanceof String) {
+                update = new HashMap<>(update);
+                update.put("value", encoder.encode((String) update.get("value")));
+            }
+            result.add(update);
+        }
+        return result;
+    }
+
     //elimina el usuario con el email correspondiente
     public void delete(String email) {
         users.deleteById(email);
+        memo.evict(User.class, email);
+        authentication.evict(email);
+        //los tokens que ya tenía dejan de aceptarse
+        revocations.revokeUser(email);
     }
 }
\ No newline at end of file
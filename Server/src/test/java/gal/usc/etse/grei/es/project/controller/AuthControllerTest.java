@@ -0,0 +1,43 @@
+package gal.usc.etse.grei.es.project.controller;
+
+import gal.usc.etse.grei.es.project.service.RevocationService;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+import java.util.Collections;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+//cierre de sesión: revoca el token con el que se hace la petición hasta que caduque
+class AuthControllerTest {
+    private final RevocationService revocations = mock(RevocationService.class);
+    private final AuthController controller = new AuthController(revocations);
+
+    @Test
+    void logoutRevokesTheTokenUntilItExpires() {
+        //los claims guardan las fechas en segundos enteros
+        Date expiration = new Date((System.currentTimeMillis() / 1000 + 3600) * 1000);
+        Claims claims = Jwts.claims().setSubject("a@test.com").setId("jti-1").setExpiration(expiration);
+        UsernamePasswordAuthenticationToken authentication =
+                new UsernamePasswordAuthenticationToken("a@test.com", null, Collections.emptyList());
+        authentication.setDetails(claims);
+
+        assertThat(controller.logout(authentication).getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        verify(revocations).revoke("jti-1", expiration);
+    }
+
+    @Test
+    void logoutWithoutClaimsRevokesNothing() {
+        UsernamePasswordAuthenticationToken authentication =
+                new UsernamePasswordAuthenticationToken("a@test.com", null, Collections.emptyList());
+
+        assertThat(controller.logout(authentication).getStatusCode()).isEqualTo(HttpStatus.NO_CONTENT);
+        verify(revocations, never()).revoke(any(), any());
+    }
+}
@@ -0,0 +1,133 @@
+package gal.usc.etse.grei.es.project.service;
+
+import com.mongodb.MongoCommandException;
+import gal.usc.etse.grei.es.project.configuration.IndexConfiguration;
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.User;
+import gal.usc.etse.grei.es.project.repository.AssessmentRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+//paginación por cursor de las valoraciones de un usuario: cada página debe leer solo sus propias valoraciones
+//con el índice {user._id: 1, _id: -1}, por antigua que sea
+@DataMongoTest
+class AssessmentServiceTest {
+    private static final String[] USERS = {"a@test.com", "b@test.com", "c@test.com"};
+    private static final int PER_USER = 300;
+    private static final int MAX_SIZE = 100;
+
+    @Autowired
+    private MongoTemplate mongo;
+
+    private MongoTemplate spy;
+    private AssessmentService service;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Assessment.class);
+        IndexOperations operations = mongo.indexOps(Assessment.class);
+        for (Index index : IndexConfiguration.indexes().get(Assessment.class)) {
+            operations.ensureIndex(index);
+        }
+        //las valoraciones de los usuarios se intercalan, como al crearse en la aplicación
+        List<Assessment> assessments = new ArrayList<>();
+        for (int i = 0; i < PER_USER; i++) {
+            for (String user : USERS) {
+                assessments.add(new Assessment(null, 1 + i % 10, new User().setEmail(user),
+                        new Film().setId("film" + i), null));
+            }
+        }
+        mongo.insert(assessments, Assessment.class);
+
+        //las dependencias que no intervienen en la consulta se sustituyen por mocks
+        spy = spy(mongo);
+        service = new AssessmentService(mock(AssessmentRepository.class), mock(FilmService.class),
+                mock(UserService.class), spy, mock(PatchMethod.class), mock(PageMethod.class), mock(CountCache.class),
+                mock(RequestMemo.class), mock(FeedService.class), MAX_SIZE);
+    }
+
+    @Test
+    void cursorPagesReturnEveryAssessmentOnce() {
+        List<String> seen = new ArrayList<>();
+        String cursor = null;
+        do {
+            CursorSlice<Assessment> slice = service.getAssessmentsUser(cursor, 40, USERS[1]).orElseThrow(AssertionError::new);
+            assertThat(slice.getContent()).allMatch(a -> a.getUser().getEmail().equals(USERS[1]));
+            slice.getContent().forEach(a -> seen.add(a.getId()));
+            cursor = slice.getNextCursor();
+        } while (cursor != null);
+
+        List<String> expected = mongo.findAll(Assessment.class).stream()
+                .filter(a -> a.getUser().getEmail().equals(USERS[1]))
+                .map(Assessment::getId)
+                .sorted((a, b) -> b.compareTo(a))
+                .collect(Collectors.toList());
+        assertThat(seen).isEqualTo(expected);
+    }
+
+    @Test
+    void sizeIsClampedBetweenOneAndTheMaximum() {
+        for (int size : new int[]{-1, 0}) {
+            Optional<CursorSlice<Assessment>> slice = service.getAssessmentsUser(null, size, USERS[0]);
+            assertThat(slice).isPresent();
+            assertThat(slice.get().getContent()).hasSize(1);
+        }
+        assertThat(service.getAssessmentsUser(null, 1000, USERS[0]).get().getContent()).hasSize(MAX_SIZE);
+    }
+
+    @Test
+    void deepPagesOnlyExamineTheirOwnDocuments() {
+        int size = 20;
+        String cursor = null;
+        //avanzamos hasta una página profunda
+        for (int i = 0; i < 10; i++) {
+            cursor = service.getAssessmentsUser(cursor, size, USERS[2]).get().getNextCursor();
+        }
+        clearInvocations(spy);
+        service.getAssessmentsUser(cursor, size, USERS[2]);
+
+        //repetimos con explain la consulta que acaba de lanzar el servicio, convertida igual que al lanzarla
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        verify(spy).find(captor.capture(), eq(Document.class), any(String.class));
+        Query query = captor.getValue();
+        Document filter = new QueryMapper(mongo.getConverter()).getMappedObject(query.getQueryObject(), Optional.empty());
+        Document find = new Document("find", mongo.getCollectionName(Assessment.class))
+                .append("filter", filter)
+                .append("sort", query.getSortObject())
+                .append("limit", query.getLimit());
+        Document explain;
+        try {
+            explain = mongo.getDb().runCommand(new Document("explain", find).append("verbosity", "executionStats"));
+        } catch (MongoCommandException e) {
+            //solo un servidor que no implemente explain; el mongod embebido de los tests lo implementa
+            assumeTrue(false, "explain is not supported by this server: " + e.getMessage());
+            return;
+        }
+
+        Document stats = explain.get("executionStats", Document.class);
+        assertThat(stats.get("totalDocsExamined", Number.class).longValue()).isLessThanOrEqualTo(size + 1);
+        assertThat(explain.get("queryPlanner", Document.class).get("winningPlan", Document.class).toJson())
+                .contains("\"indexName\": \"user_id\"");
+    }
+}
@@ -0,0 +1,127 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.CascadeJob;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.JobStatus;
+import gal.usc.etse.grei.es.project.model.User;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+//trabajos de borrado: se reservan de forma atómica, se retoman si quien los tenía deja de renovarlos, y los
+//lotes interrumpidos se terminan con su propia etiqueta, sin descontar dos veces ninguna valoración
+@DataMongoTest
+class CascadeServiceTest {
+    private static final String USER = "a@test.com";
+
+    @Autowired
+    private MongoTemplate mongo;
+
+    private FilmService films;
+    private CascadeService service;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Assessment.class);
+        mongo.dropCollection(CascadeJob.class);
+        films = mock(FilmService.class);
+        service = new CascadeService(mongo, films, mock(CountCache.class), mock(RequestMemo.class),
+                mock(FriendshipGraph.class), 500, Duration.ofMinutes(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void expiredJobsAreResumedFinishingTheirMarkedBatch() throws InterruptedException {
+        //otra instancia marcó el primer lote y se paró antes de eliminarlo
+        String id = job(System.currentTimeMillis() - 1);
+        assess(USER, "f1", 8, id + ":1");
+        assess(USER, "f2", 6, id + ":1");
+        assess(USER, "f1", 4, null);
+        assess("b@test.com", "f1", 2, null);
+
+        service.resume();
+        await(id);
+
+        //el lote marcado se descuenta con su etiqueta, y el resto con la de un lote nuevo
+        verify(films).rate("f1", Collections.singletonMap(8, -1L), id + ":1");
+        verify(films).rate("f2", Collections.singletonMap(6, -1L), id + ":1");
+        verify(films).rate("f1", Collections.singletonMap(4, -1L), id + ":2");
+        verify(films, times(3)).rate(anyString(), anyMap(), anyString());
+        verify(films).unmark(eq(Collections.singleton("f1")), eq(id + ":2"));
+        assertThat(remaining()).containsExactly("b@test.com");
+        assertThat(mongo.findById(id, CascadeJob.class).getDeleted())
+                .containsEntry(mongo.getCollectionName(Assessment.class), 3L);
+    }
+
+    @Test
+    void jobsLeasedByAnotherInstanceAreNotTaken() throws InterruptedException {
+        String id = job(System.currentTimeMillis() + 60000);
+        assess(USER, "f1", 8, id + ":1");
+
+        service.resume();
+        //los trabajos se ejecutan en orden en un único hilo, así que cuando termina este ya se ha descartado el otro
+        await(service.deleteFilm("none", "admin@test.com").getId());
+
+        CascadeJob job = mongo.findById(id, CascadeJob.class);
+        assertThat(job.getStatus()).isEqualTo(JobStatus.RUNNING);
+        assertThat(job.getOwner()).isEqualTo("other");
+        assertThat(remaining()).containsExactly(USER);
+        verify(films, never()).rate(anyString(), anyMap(), anyString());
+        verify(films, never()).unmark(anyCollection(), anyString());
+    }
+
+    //trabajo de borrado de un usuario que otra instancia tiene reservado hasta el instante indicado
+    private String job(long lease) {
+        String id = new ObjectId().toHexString();
+        mongo.insert(new CascadeJob().setId(id).setType(CascadeService.USER).setTarget(USER).setRequester(USER)
+                .setStatus(JobStatus.RUNNING).setCreated(System.currentTimeMillis())
+                .setOwner("other").setLease(lease).setBatch(1L));
+        return id;
+    }
+
+    private void assess(String user, String film, int rating, String tag) {
+        String id = new ObjectId().toHexString();
+        mongo.insert(new Assessment(id, rating, new User().setEmail(user), new Film().setId(film), null));
+        if (tag != null) {
+            mongo.updateFirst(Query.query(Criteria.where("_id").is(id)), Update.update("cascade", tag), Assessment.class);
+        }
+    }
+
+    private List<String> remaining() {
+        return mongo.findAll(Assessment.class).stream().map(a -> a.getUser().getEmail()).collect(Collectors.toList());
+    }
+
+    private void await(String id) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (mongo.findById(id, CascadeJob.class).getStatus() == JobStatus.DONE) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("cascade job " + id + " did not finish");
+    }
+}
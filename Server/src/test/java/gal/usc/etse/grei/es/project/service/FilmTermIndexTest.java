@@ -0,0 +1,103 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Film;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//índice invertido de términos de las películas: intersección de filtros, reutilización de ordinales y lectura
+//de las películas modificadas en otras instancias
+@DataMongoTest
+class FilmTermIndexTest {
+    @Autowired
+    private MongoTemplate mongo;
+
+    private FilmTermIndex index;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Film.class);
+        mongo.insert(Arrays.asList(
+                film("a", Arrays.asList("Drama", "War"), 1L),
+                film("b", Arrays.asList("Drama", "Comedy"), 1L),
+                film("c", Collections.singletonList("Comedy"), 1L)
+        ), Film.class);
+        //las lecturas periódicas se lanzan a mano en cada test
+        index = new FilmTermIndex(mongo, true, 3_600_000);
+        index.load();
+    }
+
+    @AfterEach
+    void tearDown() {
+        index.shutdown();
+    }
+
+    @Test
+    void intersectsEveryTerm() {
+        assertThat(ids(genres("Drama"))).containsExactlyInAnyOrder("a", "b");
+        assertThat(ids(genres("Drama", "Comedy"))).containsExactly("b");
+        assertThat(genres("Drama", "Western").map(FilmTermIndex.Match::getCount)).contains(0L);
+    }
+
+    @Test
+    void emptyFilterListsAreResolvedByTheDatabase() {
+        assertThat(index.match(null, null, null, null, null, 0, 10)).isEmpty();
+        assertThat(index.match(Collections.emptyList(), Collections.emptyList(), null, null, null, 0, 10)).isEmpty();
+    }
+
+    @Test
+    void pagesThroughTheMatches() {
+        FilmTermIndex.Match all = genres("Drama").orElseThrow(AssertionError::new);
+        FilmTermIndex.Match second = index.match(null, Collections.singletonList("Drama"), null, null, null, 1, 1)
+                .orElseThrow(AssertionError::new);
+        assertThat(second.getCount()).isEqualTo(2);
+        assertThat(second.getIds()).containsExactly(all.getIds().get(1));
+    }
+
+    @Test
+    void reusesTheOrdinalsOfRemovedFilms() {
+        index.remove("a");
+        index.update(film("d", Collections.singletonList("Drama"), 2L));
+        //el nuevo ocupa el hueco del eliminado, que ya no aparece
+        assertThat(ids(genres("Drama"))).containsExactly("d", "b");
+        assertThat(ids(genres("War"))).isEmpty();
+
+        //modificar una película conserva su ordinal y sustituye sus términos
+        index.update(film("b", Collections.singletonList("Western"), 3L));
+        assertThat(ids(genres("Drama"))).containsExactly("d");
+        assertThat(ids(genres("Western"))).containsExactly("b");
+    }
+
+    @Test
+    void refreshReadsFilmsModifiedElsewhere() {
+        long now = System.currentTimeMillis();
+        mongo.insert(film("e", Collections.singletonList("Horror"), now));
+        mongo.save(film("c", Arrays.asList("Comedy", "Horror"), now));
+        assertThat(genres("Horror").map(FilmTermIndex.Match::getCount)).contains(0L);
+
+        index.refresh();
+        assertThat(ids(genres("Horror"))).containsExactlyInAnyOrder("c", "e");
+    }
+
+    private Optional<FilmTermIndex.Match> genres(String... genres) {
+        return index.match(null, Arrays.asList(genres), null, null, null, 0, 10);
+    }
+
+    private static List<String> ids(Optional<FilmTermIndex.Match> match) {
+        return match.orElseThrow(AssertionError::new).getIds();
+    }
+
+    private static Film film(String id, List<String> genres, long modified) {
+        return new Film().setId(id).setTitle(id).setGenres(genres).setModified(modified);
+    }
+}
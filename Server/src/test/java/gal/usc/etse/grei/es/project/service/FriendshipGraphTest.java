@@ -0,0 +1,138 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Friendship;
+import gal.usc.etse.grei.es.project.model.FriendshipChange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//grafo de amistades con varias instancias: cada una aplica los cambios que hacen las demás al leerlos, y vuelve
+//a cargar el grafo si ha dejado de leerlos durante más tiempo del que se guardan
+@DataMongoTest
+class FriendshipGraphTest {
+    @Autowired
+    private MongoTemplate mongo;
+
+    private FriendshipGraph first;
+    private FriendshipGraph second;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Friendship.class);
+        mongo.dropCollection(FriendshipChange.class);
+        mongo.insert(new Friendship(null, "a@test.com", "b@test.com", true, null));
+        first = graph(Duration.ofDays(1));
+        second = graph(Duration.ofDays(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        first.shutdown();
+        second.shutdown();
+    }
+
+    @Test
+    void changesMadeInAnotherInstanceAreApplied() {
+        assertThat(second.areFriends("a@test.com", "b@test.com")).contains(true);
+
+        first.update(new Friendship(null, "a@test.com", "c@test.com", false, null));
+        second.refresh();
+        assertThat(second.areFriends("c@test.com", "a@test.com")).contains(true);
+        assertThat(second.confirmed("a@test.com")).contains(Collections.singletonList("b@test.com"));
+
+        first.update(new Friendship(null, "a@test.com", "c@test.com", true, null));
+        first.remove("b@test.com");
+        second.refresh();
+        assertThat(second.areFriends("a@test.com", "b@test.com")).contains(false);
+        assertThat(second.confirmed("a@test.com")).contains(Collections.singletonList("c@test.com"));
+    }
+
+    @Test
+    void rereadingChangesKeepsTheLatestState() {
+        first.update(new Friendship(null, "a@test.com", "c@test.com", false, null));
+        first.update(new Friendship(null, "a@test.com", "c@test.com", true, null));
+        //la segunda lectura repasa los mismos cambios, en el mismo orden
+        second.refresh();
+        second.refresh();
+        assertThat(second.mutual("b@test.com", "c@test.com", PageRequest.of(0, 10))
+                .get().getContent()).containsExactly("a@test.com");
+    }
+
+    @Test
+    void instancesThatMissedChangesReloadTheGraph() {
+        FriendshipGraph stale = graph(Duration.ZERO);
+        try {
+            //el cambio ya no está en la colección de cambios, pero sí en la de amistades
+            mongo.insert(new Friendship(null, "a@test.com", "d@test.com", true, null));
+            mongo.remove(new Query(), FriendshipChange.class);
+            stale.refresh();
+            assertThat(stale.areFriends("a@test.com", "d@test.com")).contains(true);
+        } finally {
+            stale.shutdown();
+        }
+    }
+
+    @Test
+    void gallopingIntersectionMatchesTheBitmapIntersection() {
+        Random random = new Random(42);
+        //tamaños muy distintos y parecidos, con densidades que dan contenedores de array y de bitmap
+        int[][] sizes = {{0, 10}, {1, 50000}, {30, 50000}, {5000, 5000}, {20000, 60000}};
+        for (int[] size : sizes) {
+            RoaringBitmap a = new RoaringBitmap();
+            RoaringBitmap b = new RoaringBitmap();
+            random.ints(size[0], 0, 100000).forEach(a::add);
+            random.ints(size[1], 0, 100000).forEach(b::add);
+            int[] expected = RoaringBitmap.and(a, b).toArray();
+            assertThat(FriendshipGraph.intersect(a.toArray(), b.toArray())).containsExactly(expected);
+            assertThat(FriendshipGraph.intersect(b.toArray(), a.toArray())).containsExactly(expected);
+        }
+    }
+
+    @Test
+    void mutualFriendsArePagedAndFollowChanges() {
+        for (int i = 0; i < 25; i++) {
+            String friend = "f" + i + "@test.com";
+            first.update(new Friendship(null, "a@test.com", friend, true, null));
+            first.update(new Friendship(null, "c@test.com", friend, i % 2 == 0, null));
+        }
+        List<String> seen = new ArrayList<>();
+        for (int page = 0; page < 3; page++) {
+            Page<String> result = first.mutual("a@test.com", "c@test.com", PageRequest.of(page, 5)).get();
+            assertThat(result.getTotalElements()).isEqualTo(13);
+            seen.addAll(result.getContent());
+        }
+        assertThat(seen).hasSize(13).doesNotHaveDuplicates();
+        assertThat(first.mutual("c@test.com", "a@test.com", PageRequest.of(2, 5)).get().getContent())
+                .containsExactlyElementsOf(seen.subList(10, 13));
+
+        //los resultados guardados dejan de valer al cambiar los amigos de cualquiera de los dos
+        first.update(new Friendship(null, "c@test.com", "f1@test.com", true, null));
+        assertThat(first.mutual("a@test.com", "c@test.com", PageRequest.of(0, 5)).get().getTotalElements())
+                .isEqualTo(14);
+        first.remove("f0@test.com");
+        assertThat(first.mutual("a@test.com", "c@test.com", PageRequest.of(0, 100)).get().getContent())
+                .hasSize(13).doesNotContain("f0@test.com");
+    }
+
+    //instancia que no lee los cambios por sí sola durante la prueba
+    private FriendshipGraph graph(Duration retention) {
+        FriendshipGraph graph = new FriendshipGraph(mongo, 100, 1000, 1000, retention, 3600000);
+        graph.load();
+        return graph;
+    }
+}
@@ -0,0 +1,108 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.SigningKey;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+//claves de firmado compartidas: todas las instancias firman con la misma, la anterior se sigue aceptando tras la
+//rotación hasta que pasa el tiempo de retención, y un kid desconocido no se acepta
+@DataMongoTest
+class KeyRingTest {
+    private static final long HOUR = 3600000;
+
+    @Autowired
+    private MongoTemplate mongo;
+
+    private final List<KeyRing> rings = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(SigningKey.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        rings.forEach(KeyRing::shutdown);
+    }
+
+    @Test
+    void instancesSignWithTheSameKey() {
+        KeyRing first = ring();
+        KeyRing second = ring();
+
+        assertThat(second.signing().getKey()).isEqualTo(first.signing().getKey());
+        assertThat(second.signing().getValue()).isEqualTo(first.signing().getValue());
+        assertThat(mongo.findAll(SigningKey.class)).hasSize(1);
+    }
+
+    @Test
+    void retiredKeysAreAcceptedUntilTheRetentionEnds() {
+        long now = System.currentTimeMillis();
+        //la más antigua se retiró hace más de la retención; la otra ha superado su tiempo de uso
+        mongo.insert(key("old", now - 3 * HOUR));
+        mongo.insert(key("previous", now - 2 * HOUR));
+        KeyRing ring = ring();
+
+        String active = ring.signing().getKey();
+        assertThat(active).isNotIn("old", "previous");
+        assertThat(ring.get(active)).isEqualTo(ring.signing().getValue());
+        assertThat(ring.get("previous")).isNotNull();
+        assertThat(ring.get("old")).isNull();
+        assertThat(mongo.findById("old", SigningKey.class)).isNull();
+        assertThat(mongo.findById("previous", SigningKey.class)).isNotNull();
+    }
+
+    @Test
+    void unknownKeysAreRejected() {
+        KeyRing ring = ring();
+
+        assertThat(ring.get(null)).isNull();
+        assertThat(ring.get("unknown")).isNull();
+    }
+
+    @Test
+    void keysCreatedByAnotherInstanceAreRead() {
+        KeyRing ring = ring();
+        //otra instancia ha rotado la clave después de la última lectura
+        mongo.insert(key("rotated", System.currentTimeMillis() + 1000));
+        //las claves acaban de leerse, así que un kid desconocido no provoca otra lectura todavía
+        assertThat(ring.get("rotated")).isNull();
+
+        ring.refresh();
+        assertThat(ring.get("rotated")).isNotNull();
+        assertThat(ring.signing().getKey()).isEqualTo("rotated");
+    }
+
+    @Test
+    void retentionShorterThanTheTokenDurationIsRejected() {
+        assertThatThrownBy(() -> new KeyRing(mongo, Duration.ofHours(1), Duration.ofMinutes(30), Duration.ofMinutes(60), HOUR))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    //instancia que rota cada hora, acepta las claves retiradas otra hora y no las lee por sí sola durante la prueba
+    private KeyRing ring() {
+        KeyRing ring = new KeyRing(mongo, Duration.ofHours(1), Duration.ofHours(1), Duration.ofMinutes(60), HOUR);
+        ring.start();
+        rings.add(ring);
+        return ring;
+    }
+
+    private static SigningKey key(String id, long created) {
+        byte[] secret = Keys.secretKeyFor(SignatureAlgorithm.HS512).getEncoded();
+        return new SigningKey(id, Base64.getEncoder().encodeToString(secret), created);
+    }
+}
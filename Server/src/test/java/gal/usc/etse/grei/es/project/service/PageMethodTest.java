@@ -0,0 +1,124 @@
+package gal.usc.etse.grei.es.project.service;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.FilmSummary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//compara las dos formas de paginar: find más count y una única agregación $facet
+@DataMongoTest
+@Import(PageMethodTest.Commands.class)
+class PageMethodTest {
+    private static final List<String> GENRES = Arrays.asList("Drama", "Comedy", "Horror", "Western");
+    private static final int FILMS = 1000;
+    //comandos con los que se leen documentos o se cuentan
+    private static final Set<String> QUERIES = new HashSet<>(Arrays.asList("find", "aggregate", "count"));
+
+    @Autowired
+    private MongoTemplate mongo;
+
+    private PageMethod find;
+    private PageMethod facet;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Film.class);
+        List<Film> films = new ArrayList<>();
+        for (int i = 0; i < FILMS; i++) {
+            films.add(new Film()
+                    .setTitle(String.format("Film %04d", (i * 7919) % FILMS))
+                    .setGenres(Collections.singletonList(GENRES.get(i % GENRES.size()))));
+        }
+        mongo.insert(films, Film.class);
+        //sin caché de totales, para que las dos formas lean siempre de la base de datos
+        find = new PageMethod(mongo, new CountCache(mongo, Duration.ZERO), false);
+        facet = new PageMethod(mongo, new CountCache(mongo, Duration.ZERO), true);
+    }
+
+    @Test
+    void bothMethodsReturnTheSamePageAndTotal() {
+        List<Criteria> filters = Arrays.asList(
+                Criteria.where("_id").exists(true),
+                Criteria.where("genres").all("Drama"),
+                Criteria.where("genres").all("Musical")
+        );
+        for (Criteria criteria : filters) {
+            for (int page : new int[]{0, 1, 12, 249, 250, 500}) {
+                Pageable request = PageRequest.of(page, 20, Sort.by("title"));
+                Page<FilmSummary> expected = find.page(criteria, request, FilmSummary.class, FilmSummary.FIELDS);
+                Page<FilmSummary> actual = facet.page(criteria, request, FilmSummary.class, FilmSummary.FIELDS);
+
+                assertThat(ids(actual)).as("page %d of %s", page, criteria.getCriteriaObject()).isEqualTo(ids(expected));
+                assertThat(actual.getTotalElements()).as("total of %s", criteria.getCriteriaObject())
+                        .isEqualTo(expected.getTotalElements());
+            }
+        }
+    }
+
+    //lo que ahorra $facet son viajes a la base de datos: cuando el total no se deduce de la página, find más
+    //count lanza dos consultas y $facet una sola; en la última página find no necesita contar
+    @Test
+    void facetNeedsASingleRoundTrip() {
+        Criteria criteria = Criteria.where("genres").all("Comedy");
+        Pageable first = PageRequest.of(0, 20, Sort.by("title"));
+        Pageable last = PageRequest.of(12, 20, Sort.by("title"));
+
+        assertThat(roundTrips(() -> find.page(criteria, first, FilmSummary.class, FilmSummary.FIELDS))).isEqualTo(2);
+        assertThat(roundTrips(() -> facet.page(criteria, first, FilmSummary.class, FilmSummary.FIELDS))).isEqualTo(1);
+        assertThat(roundTrips(() -> find.page(criteria, last, FilmSummary.class, FilmSummary.FIELDS))).isEqualTo(1);
+        assertThat(roundTrips(() -> facet.page(criteria, last, FilmSummary.class, FilmSummary.FIELDS))).isEqualTo(1);
+    }
+
+    //consultas que llegan al servidor mientras se ejecuta la operación
+    private static int roundTrips(Runnable operation) {
+        Commands.started.clear();
+        operation.run();
+        return (int) Commands.started.stream().filter(QUERIES::contains).count();
+    }
+
+    private static List<String> ids(Page<FilmSummary> page) {
+        return page.getContent().stream().map(FilmSummary::getId).collect(Collectors.toList());
+    }
+
+    //registra el nombre de cada comando enviado al servidor
+    @TestConfiguration
+    static class Commands {
+        private static final List<String> started = new CopyOnWriteArrayList<>();
+
+        @Bean
+        MongoClientSettingsBuilderCustomizer commandListener() {
+            return settings -> settings.addCommandListener(new CommandListener() {
+                @Override
+                public void commandStarted(CommandStartedEvent event) {
+                    started.add(event.getCommandName());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package gal.usc.etse.grei.es.project.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fge.jsonpatch.JsonPatchException;
+import gal.usc.etse.grei.es.project.model.Film;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+//patch de documentos versionados: traducción a una actualización atómica, aplicación en memoria como
+//alternativa, y control de versiones con reintentos
+@DataMongoTest
+class PatchMethodTest {
+    @Autowired
+    private MongoTemplate mongo;
+
+    private PatchMethod patchMethod;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Film.class);
+        mongo.insert(new Film().setId("film").setTitle("1917").setGenres(Arrays.asList("Drama", "War")).setVersion(0L));
+        //campo que el modelo no recoge, como las etiquetas de FilmService.rate
+        mongo.updateFirst(byId(), Update.update("ratingTags", Collections.singletonList("job:1")), Film.class);
+        patchMethod = new PatchMethod(new ObjectMapper(), mongo, 3);
+    }
+
+    @Test
+    void translatablePatchesAreASingleAtomicUpdate() throws JsonPatchException {
+        Film film = patchMethod.patch(Film.class, "film", 0L, Arrays.asList(
+                operation("replace", "/title", "1918"),
+                operation("add", "/genres/-", "History")
+        ), f -> {
+            throw new AssertionError("the patch should not be applied in memory");
+        }).orElseThrow(AssertionError::new);
+
+        assertThat(film.getTitle()).isEqualTo("1918");
+        assertThat(film.getGenres()).containsExactly("Drama", "War", "History");
+        assertThat(film.getVersion()).isEqualTo(1L);
+        assertThat(raw().get("ratingTags")).isEqualTo(Collections.singletonList("job:1"));
+    }
+
+    @Test
+    void inMemoryPatchesKeepFieldsTheModelDoesNotMap() throws JsonPatchException {
+        //move no se puede traducir, así que se aplica en memoria
+        Film film = patchMethod.patch(Film.class, "film", null, Collections.singletonList(
+                from("move", "/overview", "/title")
+        ), f -> f).orElseThrow(AssertionError::new);
+
+        assertThat(film.getOverview()).isEqualTo("1917");
+        assertThat(film.getTitle()).isNull();
+        assertThat(film.getVersion()).isEqualTo(1L);
+        Document raw = raw();
+        assertThat(raw.containsKey("title")).isFalse();
+        assertThat(raw.get("ratingTags")).isEqualTo(Collections.singletonList("job:1"));
+    }
+
+    @Test
+    void staleVersionsAreRejected() {
+        assertThatThrownBy(() -> patchMethod.patch(Film.class, "film", 5L,
+                Collections.singletonList(operation("replace", "/title", "1918")), f -> f))
+                .isInstanceOf(OptimisticLockingFailureException.class);
+        assertThat(raw().getString("title")).isEqualTo("1917");
+    }
+
+    @Test
+    void concurrentWritesAreRetriedWithoutLosingThem() throws JsonPatchException {
+        AtomicInteger attempts = new AtomicInteger();
+        Film film = patchMethod.patch(Film.class, "film", null, Collections.singletonList(
+                from("copy", "/overview", "/title")
+        ), f -> {
+            //la primera vez, otra petición modifica la película entre la lectura y la escritura
+            if (attempts.getAndIncrement() == 0) {
+                mongo.updateFirst(byId(), new Update().set("tagline", "War").inc("version", 1), Film.class);
+            }
+            return f;
+        }).orElseThrow(AssertionError::new);
+
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(film.getOverview()).isEqualTo("1917");
+        assertThat(film.getTagline()).isEqualTo("War");
+        assertThat(film.getVersion()).isEqualTo(2L);
+    }
+
+    @Test
+    void previousReturnsTheDocumentTheWriteReplaced() throws JsonPatchException {
+        AtomicInteger attempts = new AtomicInteger();
+        Film previous = patchMethod.previous(Film.class, "film", null, Collections.singletonList(
+                from("copy", "/overview", "/title")
+        ), f -> {
+            //otra petición cambia el título entre la primera lectura y la escritura
+            if (attempts.getAndIncrement() == 0) {
+                mongo.updateFirst(byId(), new Update().set("title", "1918").inc("version", 1), Film.class);
+            }
+            return f;
+        }).orElseThrow(AssertionError::new);
+
+        //el documento anterior es el que se sobrescribió, no el de la primera lectura
+        assertThat(previous.getTitle()).isEqualTo("1918");
+        assertThat(previous.getVersion()).isEqualTo(1L);
+        assertThat(raw().getString("overview")).isEqualTo("1918");
+        assertThat(raw().get("version", Number.class).longValue()).isEqualTo(2L);
+    }
+
+    @Test
+    void retriesAreBounded() {
+        assertThatThrownBy(() -> patchMethod.patch(Film.class, "film", null, Collections.singletonList(
+                from("copy", "/overview", "/title")
+        ), f -> {
+            mongo.updateFirst(byId(), new Update().inc("version", 1), Film.class);
+            return f;
+        })).isInstanceOf(OptimisticLockingFailureException.class);
+    }
+
+    private Document raw() {
+        return mongo.findOne(byId(), Document.class, mongo.getCollectionName(Film.class));
+    }
+
+    private static Query byId() {
+        return Query.query(Criteria.where("_id").is("film"));
+    }
+
+    private static Map<String, Object> operation(String op, String path, Object value) {
+        Map<String, Object> operation = new HashMap<>();
+        operation.put("op", op);
+        operation.put("path", path);
+        operation.put("value", value);
+        return operation;
+    }
+
+    //operaciones que toman el valor de otra ruta, como move y copy
+    private static Map<String, Object> from(String op, String path, String from) {
+        Map<String, Object> operation = new HashMap<>();
+        operation.put("op", op);
+        operation.put("path", path);
+        operation.put("from", from);
+        return operation;
+    }
+}
@@ -0,0 +1,82 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.Propagation;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//propagación de los títulos a las valoraciones: se copian sea cual sea el tipo con el que se guardó el id de la
+//película, y cada cambio lo propaga solo la instancia que lo reserva
+@DataMongoTest
+class PropagationServiceTest {
+    private static final String FILM = new ObjectId().toHexString();
+
+    @Autowired
+    private MongoTemplate mongo;
+
+    private PropagationService service;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Film.class);
+        mongo.dropCollection(Assessment.class);
+        mongo.dropCollection(Propagation.class);
+        mongo.insert(new Film().setId(FILM).setTitle("1918"));
+        String collection = mongo.getCollectionName(Assessment.class);
+        //el id de la película puede estar guardado como ObjectId o como texto
+        mongo.insert(new Document("film", new Document("_id", new ObjectId(FILM)).append("title", "1917")), collection);
+        mongo.insert(new Document("film", new Document("_id", FILM).append("title", "1917")), collection);
+        service = new PropagationService(mongo, 1, 0.0, 60000, Duration.ofMinutes(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void titlesArePropagatedWhateverTheTypeOfTheFilmId() {
+        service.changed(PropagationService.FILM, FILM);
+        service.propagate();
+
+        assertThat(titles()).containsExactly("1918", "1918");
+        assertThat(mongo.findAll(Propagation.class)).isEmpty();
+    }
+
+    @Test
+    void changesLeasedByAnotherInstanceAreNotPropagated() {
+        service.changed(PropagationService.FILM, FILM);
+        mongo.updateFirst(new Query(), Update.update("owner", "other")
+                .set("lease", System.currentTimeMillis() + 60000), Propagation.class);
+        service.propagate();
+
+        assertThat(titles()).containsExactly("1917", "1917");
+        assertThat(mongo.findAll(Propagation.class)).hasSize(1);
+
+        //cuando la reserva caduca, cualquier instancia lo retoma
+        mongo.updateFirst(new Query(), Update.update("lease", 0L), Propagation.class);
+        service.propagate();
+        assertThat(titles()).containsExactly("1918", "1918");
+    }
+
+    private List<String> titles() {
+        return mongo.findAll(Document.class, mongo.getCollectionName(Assessment.class)).stream()
+                .map(d -> d.get("film", Document.class).getString("title"))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,106 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.RevokedToken;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//revocación de tokens: uno a uno hasta su caducidad, todos los de un usuario emitidos hasta el segundo de la
+//revocación, y sin falsos positivos aunque el filtro de Bloom los dé
+@DataMongoTest
+class RevocationServiceTest {
+    private static final long HOUR = 3600000;
+
+    @Autowired
+    private MongoTemplate mongo;
+
+    private final List<RevocationService> services = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(RevokedToken.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        services.forEach(RevocationService::shutdown);
+    }
+
+    @Test
+    void revokedTokensAreRejectedUntilTheyExpire() {
+        RevocationService service = service(100000, 0.0001);
+        long now = System.currentTimeMillis();
+        service.revoke("jti-1", new Date(now + HOUR));
+        //un token que ya ha caducado no hace falta guardarlo
+        service.revoke("jti-2", new Date(now - 1));
+
+        assertThat(service.isRevoked("jti-1", "a@test.com", new Date(now))).isTrue();
+        assertThat(service.isRevoked("jti-2", "a@test.com", new Date(now))).isFalse();
+        assertThat(service.isRevoked("jti-3", "a@test.com", new Date(now))).isFalse();
+        assertThat(mongo.findById("jti:jti-2", RevokedToken.class)).isNull();
+    }
+
+    @Test
+    void userRevocationsCompareWholeSeconds() {
+        RevocationService service = service(100000, 0.0001);
+        long before = System.currentTimeMillis();
+        service.revokeUser("a@test.com");
+        long revoked = mongo.findById("sub:a@test.com", RevokedToken.class).getCreated();
+        long second = RevocationService.seconds(revoked);
+
+        //el iat de un token emitido antes, o en el mismo segundo aunque sea después, no es posterior a la revocación
+        assertThat(service.isRevoked("t", "a@test.com", new Date(RevocationService.seconds(before)))).isTrue();
+        assertThat(service.isRevoked("t", "a@test.com", new Date(second))).isTrue();
+        assertThat(service.isRevoked("t", "a@test.com", null)).isTrue();
+        //los emitidos a partir del segundo siguiente se aceptan, y los de otros usuarios no se ven afectados
+        assertThat(service.isRevoked("t", "a@test.com", new Date(second + 1000))).isFalse();
+        assertThat(service.isRevoked("t", "b@test.com", new Date(second))).isFalse();
+    }
+
+    @Test
+    void bloomFilterFalsePositivesAreCheckedAgainstTheExactMap() {
+        //un filtro de un solo bloque de 64 bits, que se satura enseguida
+        RevocationService service = service(1, 0.5);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++) {
+            service.revoke("revoked-" + i, new Date(now + HOUR));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(service.isRevoked(UUID.randomUUID().toString(), "a@test.com", new Date(now))).isFalse();
+        }
+        assertThat(service.isRevoked("revoked-7", "a@test.com", new Date(now))).isTrue();
+    }
+
+    @Test
+    void revocationsMadeInAnotherInstanceAreRead() {
+        RevocationService first = service(100000, 0.0001);
+        RevocationService second = service(100000, 0.0001);
+        long now = System.currentTimeMillis();
+        first.revoke("jti-1", new Date(now + HOUR));
+        first.revokeUser("a@test.com");
+        assertThat(second.isRevoked("jti-1", null, null)).isFalse();
+
+        second.refresh();
+        assertThat(second.isRevoked("jti-1", null, null)).isTrue();
+        assertThat(second.isRevoked(null, "a@test.com", new Date(now - 1000))).isTrue();
+    }
+
+    //instancia que no lee las revocaciones por sí sola durante la prueba
+    private RevocationService service(int expected, double fpp) {
+        RevocationService service = new RevocationService(mongo, Duration.ofHours(1), expected, fpp, HOUR);
+        service.load();
+        services.add(service);
+        return service;
+    }
+}
@@ -0,0 +1,103 @@
+package gal.usc.etse.grei.es.project.service;
+
+import gal.usc.etse.grei.es.project.model.Assessment;
+import gal.usc.etse.grei.es.project.model.Checkpoint;
+import gal.usc.etse.grei.es.project.model.Film;
+import gal.usc.etse.grei.es.project.model.TrendingFilm;
+import gal.usc.etse.grei.es.project.model.User;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+//puntuaciones de tendencia: cada valoración se suma una sola vez aunque se guarde tarde o se repase tras un
+//cambio de instancia, y las instancias sin permiso leen solo las primeras películas
+@DataMongoTest
+class TrendingServiceTest {
+    @Autowired
+    private MongoTemplate mongo;
+
+    @BeforeEach
+    void setUp() {
+        mongo.dropCollection(Assessment.class);
+        mongo.dropCollection(TrendingFilm.class);
+        mongo.dropCollection(Checkpoint.class);
+    }
+
+    @Test
+    void lateAssessmentsAreAddedOnce() {
+        long now = System.currentTimeMillis();
+        TrendingService service = service(LeaseService.Grant.RENEWED, 100);
+        assess(now - 10000, "film");
+        service.refresh();
+        assertThat(score(service, "film")).isCloseTo(1.0, within(0.01));
+
+        //una valoración con un id anterior al punto de control se guarda después de procesarlo
+        assess(now - 20000, "film");
+        service.refresh();
+        service.refresh();
+        assertThat(score(service, "film")).isCloseTo(2.0, within(0.01));
+    }
+
+    @Test
+    void anotherInstanceDoesNotAddTheOverlapAgain() {
+        long now = System.currentTimeMillis();
+        assess(now - 30000, "film");
+        assess(now - 10000, "film");
+        service(LeaseService.Grant.RENEWED, 100).refresh();
+
+        //la instancia que se queda con el permiso parte de lo guardado y repasa el mismo margen
+        TrendingService next = service(LeaseService.Grant.ACQUIRED, 100);
+        next.refresh();
+        assertThat(score(next, "film")).isCloseTo(2.0, within(0.01));
+        assertThat(mongo.findById("film", TrendingFilm.class).getScore()).isCloseTo(2.0, within(0.01));
+    }
+
+    @Test
+    void instancesWithoutTheLeaseReadTheTopByRank() {
+        long now = System.currentTimeMillis();
+        //la película más valorada lo fue hace más tiempo, así que su puntuación guardada se refiere a otro instante
+        for (int i = 0; i < 3; i++) {
+            assess(now - 7200000 - i, "old");
+        }
+        assess(now - 1000, "new");
+        assess(now - 2000, "new");
+        assess(now - 3000, "last");
+        service(LeaseService.Grant.RENEWED, 100).refresh();
+
+        TrendingService reader = service(LeaseService.Grant.DENIED, 2);
+        reader.refresh();
+        assertThat(reader.get(10).stream().map(TrendingFilm::getId).collect(Collectors.toList()))
+                .containsExactly("old", "new");
+    }
+
+    private TrendingService service(LeaseService.Grant grant, int size) {
+        LeaseService leases = mock(LeaseService.class);
+        when(leases.acquire(eq("trending"), any(Duration.class))).thenReturn(grant);
+        return new TrendingService(mongo, leases, Duration.ofHours(6), size, Duration.ofMinutes(1), Duration.ofMinutes(5));
+    }
+
+    private void assess(long time, String film) {
+        mongo.insert(new Assessment(new ObjectId(new Date(time)).toHexString(), 10, new User().setEmail("a@test.com"),
+                new Film().setId(film).setTitle(film), null));
+    }
+
+    private static double score(TrendingService service, String film) {
+        List<TrendingFilm> top = service.get(100);
+        return top.stream().filter(f -> f.getId().equals(film)).findFirst().orElseThrow(AssertionError::new).getScore();
+    }
+}